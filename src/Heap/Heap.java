@@ -8,6 +8,7 @@
 package Heap;
 
 import java.util.Comparator;
+import java.util.function.ToLongFunction;
 
 // TODO: Do I need to handle error conditions?
 
@@ -15,12 +16,38 @@ public class Heap <T> {
     private int heapSize;
     private T[] heap;
     private Comparator<T> comparer;
+    private final int arity;
+    private long[] prefixes;
+    private ToLongFunction<T> prefixer;
 
-    public Heap (T[] rawArray, Comparator<T> comparisonFunction) {
+    public Heap (T[] rawArray, Comparator<T> comparisonFunction) { this(rawArray, comparisonFunction, 2); }
+
+    public Heap (T[] rawArray, Comparator<T> comparisonFunction, int arity) { this(rawArray, comparisonFunction, arity, null); }
+
+    /**
+     * Creates a d-ary heap. The children of a node sit next to each other in the array,
+     * so a wider heap is shallower and touches fewer cache lines on the way down
+     * @param rawArray Array to use for the heap, null entries are treated as empty slots
+     * @param comparisonFunction Comparison used to order the heap
+     * @param arity Number of children per node, at least 2
+     * @param keyPrefix Gets a normalized key prefix for an element, see KeyPrefix. Null to always use the comparison function
+     */
+    public Heap (T[] rawArray, Comparator<T> comparisonFunction, int arity, ToLongFunction<T> keyPrefix) {
+        if (arity < 2) { throw new IllegalArgumentException("Heap arity must be at least 2"); }
         // Set members
         this.comparer = comparisonFunction;
         this.heap = rawArray;
         this.heapSize = rawArray.length;
+        this.arity = arity;
+        this.prefixer = keyPrefix;
+
+        // Cache the prefix of every element next to its slot
+        if (keyPrefix != null) {
+            this.prefixes = new long[rawArray.length];
+            for (int i = 0; i < rawArray.length; i++) {
+                if (rawArray[i] != null) { prefixes[i] = keyPrefix.applyAsLong(rawArray[i]); }
+            }
+        }
 
         // Put the array in heap order
         resetHeap();
@@ -31,14 +58,14 @@ public class Heap <T> {
      * @param index Index of the child
      * @return Index of parent
      */
-    private int getParentIndex (int index) { return (index - 1) / 2; }
+    private int getParentIndex (int index) { return (index - 1) / arity; }
 
     /**
-     * Gets the index of left child
+     * Gets the index of first child
      * @param index Parent index
-     * @return Index of left child
+     * @return Index of first child
      */
-    private int getLeftChildIndex (int index) { return index * 2 + 1; }
+    private int getFirstChildIndex (int index) { return index * arity + 1; }
 
     /**
      * Checks index is in range
@@ -65,12 +92,76 @@ public class Heap <T> {
      */
     public int getFreeNodes () { return heap.length - heapSize; }
 
+    /**
+     * Gets the number of children per node
+     * @return The arity of the heap
+     */
+    public int getArity () { return arity; }
+
     /**
      * Gets the underlying array for the heap
      * @return The underlying array
      */
     public T[] getHeap () { return heap; }
 
+    /**
+     * Compares an element against the element at an index.
+     * The cached prefixes are compared first, the comparison function is only used when they tie
+     * @param item Element to compare
+     * @param itemPrefix Prefix of the element, ignored if prefixes aren't used
+     * @param index Index of the element to compare against
+     * @return Comparison of item against the element at index
+     */
+    private int compareTo (T item, long itemPrefix, int index) {
+        if (prefixes != null && itemPrefix != prefixes[index]) { return itemPrefix < prefixes[index] ? -1 : 1; }
+        return comparer.compare(item, heap[index]);
+    }
+
+    /**
+     * Compares the elements at two indexes
+     * @param a Index of the first element
+     * @param b Index of the second element
+     * @return Comparison of the first element against the second
+     */
+    private int compareAt (int a, int b) { return compareTo(heap[a], getPrefix(a), b); }
+
+    /**
+     * Gets the cached prefix at an index
+     * @param index Index of the element
+     * @return The prefix, 0 if prefixes aren't used
+     */
+    private long getPrefix (int index) { return prefixes != null ? prefixes[index] : 0; }
+
+    /**
+     * Puts an element and its prefix at an index
+     * @param index Index to put at
+     * @param item Element to put
+     * @param itemPrefix Prefix of the element
+     */
+    private void set (int index, T item, long itemPrefix) {
+        heap[index] = item;
+        if (prefixes != null) { prefixes[index] = itemPrefix; }
+    }
+
+    /**
+     * Computes the prefix of a new element
+     * @param item Element to get the prefix of
+     * @return The prefix, 0 if prefixes aren't used
+     */
+    private long makePrefix (T item) { return prefixer != null ? prefixer.applyAsLong(item) : 0; }
+
+    /**
+     * Swaps the elements at two indexes
+     * @param a Index of the first element
+     * @param b Index of the second element
+     */
+    private void swap (int a, int b) {
+        T item = heap[a];
+        long itemPrefix = getPrefix(a);
+        set(a, heap[b], getPrefix(b));
+        set(b, item, itemPrefix);
+    }
+
     /**
      * Heapifies array not in heap order
      */
@@ -91,9 +182,7 @@ public class Heap <T> {
         // Check that the heap has something to swap
         if (heapSize <= 1) { return; }
         // Swap head and tail
-        T head = heap[0];
-        heap[0] = heap[heapSize - 1];
-        heap[heapSize - 1] = head;
+        swap(0, heapSize - 1);
     }
 
     /**
@@ -114,6 +203,50 @@ public class Heap <T> {
         while (index >= 0) { index = trySwapDown(index); }
     }
 
+    /**
+     * Perform bottom up down heap operation (Floyd's method).
+     * The hole at the index is moved down to a leaf along the path of smallest children,
+     * without comparing against the element being placed, then the element is bubbled up from there.
+     * Elements placed at the root usually belong near the bottom, so this saves most of the parent comparisons
+     * @param index Index to start at
+     */
+    private void bottomUpDownHeap (int index) {
+        T item = heap[index];
+        long itemPrefix = getPrefix(index);
+        int hole = index;
+
+        // Move the hole down to a leaf, pulling the smallest child up each level
+        int childIndex;
+        while ((childIndex = getFirstChildIndex(hole)) < heapSize) {
+            int smallest = getSmallestChild(childIndex);
+            set(hole, heap[smallest], getPrefix(smallest));
+            hole = smallest;
+        }
+
+        // Bubble the element back up from the leaf until it fits
+        while (hole > index) {
+            int parentIndex = getParentIndex(hole);
+            if (compareTo(item, itemPrefix, parentIndex) >= 0) { break; }
+            set(hole, heap[parentIndex], getPrefix(parentIndex));
+            hole = parentIndex;
+        }
+        set(hole, item, itemPrefix);
+    }
+
+    /**
+     * Gets the smallest of a group of siblings
+     * @param firstChild Index of the first sibling, must be in range
+     * @return Index of the smallest sibling
+     */
+    private int getSmallestChild (int firstChild) {
+        int lastChild = Math.min(firstChild + arity, heapSize);
+        int smallest = firstChild;
+        for (int i = firstChild + 1; i < lastChild; i++) {
+            if (compareAt(smallest, i) > 0) { smallest = i; }
+        }
+        return smallest;
+    }
+
     /**
      * Swap node with parent if smaller
      * @param nodeIndex Node to try to swap
@@ -123,17 +256,14 @@ public class Heap <T> {
         // Check we have a parent to swap with
         if (nodeIndex <= 0) { return -1; }
 
-        // Get parent value
+        // Get parent index
         int parentIndex = getParentIndex(nodeIndex);
-        T currentItem = heap[nodeIndex];
-        T parentItem = heap[parentIndex];
 
         // Check if we need to swap
-        if (comparer.compare(parentItem, currentItem) <= 0) { return -1; }
+        if (compareAt(parentIndex, nodeIndex) <= 0) { return -1; }
 
         // Swap with parent
-        heap[parentIndex] = currentItem;
-        heap[nodeIndex] = parentItem;
+        swap(parentIndex, nodeIndex);
         return parentIndex;
     }
 
@@ -146,36 +276,21 @@ public class Heap <T> {
         // If it's at the bottom
         if (nodeIndex == heapSize - 1 || nodeIndex < 0) { return -1; }
 
-        // Get child indexes
-        int lIdx = getLeftChildIndex(nodeIndex);
-        int rIdx = lIdx + 1;
-
-        // Left child is out of range - No children
-        if (!checkIndex(lIdx)) { return -1; }
-
-        // Get left child value
-        T currNode = heap[nodeIndex];
-        T leftChild = heap[lIdx];
-        T currCompareNode = leftChild;
-        int comparisonIndex = lIdx;
-
-        // Check if we have right child
-        if (checkIndex(rIdx)) {
-            T rightChild = heap[rIdx];
-            // Check if right child is less than left
-            if (comparer.compare(leftChild, rightChild) > 0) {
-                currCompareNode = rightChild;
-                comparisonIndex = rIdx;
-            }
-        }
+        // Get first child index
+        int firstIdx = getFirstChildIndex(nodeIndex);
+
+        // First child is out of range - No children
+        if (!checkIndex(firstIdx)) { return -1; }
+
+        // Find the smallest child
+        int comparisonIndex = getSmallestChild(firstIdx);
 
         // Check if we need to swap - <= 0 means parent is smaller, dont swap down
-        int parentCompare = comparer.compare(currNode, currCompareNode);
+        int parentCompare = compareAt(nodeIndex, comparisonIndex);
         if (parentCompare <= 0) { return -1; }
 
         // Swap down
-        heap[nodeIndex] = heap[comparisonIndex];
-        heap[comparisonIndex] = currNode;
+        swap(nodeIndex, comparisonIndex);
         // Return new index
         return comparisonIndex;
     }
@@ -191,7 +306,7 @@ public class Heap <T> {
         // Insert new node
         int insIndex = heapSize;
         heapSize++;
-        heap[insIndex] = newItem;
+        set(insIndex, newItem, makePrefix(newItem));
 
         // Perform upheap operation
         upHeap(insIndex);
@@ -212,7 +327,7 @@ public class Heap <T> {
         // Decrease heap size
         heapSize--;
         // Down heap swapped element to restore heap order
-        downHeap(0);
+        if (heapSize > 0) { bottomUpDownHeap(0); }
 
         T removed = heap[heapSize];
         // Set old value to null if not keeping it
@@ -233,9 +348,9 @@ public class Heap <T> {
         if (heapSize == 0) { return null; }
         // Replace element
         T curr = heap[0];
-        heap[0] = newItem;
+        set(0, newItem, makePrefix(newItem));
         // Down heap new element to restore heap order
-        downHeap(0);
+        bottomUpDownHeap(0);
         return curr;
     }
 
@@ -261,7 +376,7 @@ public class Heap <T> {
             if(heap[i] == null) {
                 shift++;
             } else {
-                heap[i-shift] = heap[i];
+                set(i-shift, heap[i], getPrefix(i));
                 if(shift > 0)
                     heap[i] = null;
             }
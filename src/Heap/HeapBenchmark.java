@@ -0,0 +1,109 @@
+/**
+ * Benchmark comparing heap arities and key prefix caching on a replacement selection workload
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package Heap;
+
+import java.util.Comparator;
+import java.util.Random;
+import java.util.function.ToLongFunction;
+
+public class HeapBenchmark {
+    final static private String usage = "Usage: java Heap.HeapBenchmark <heap_size> <operations> [arity...]";
+
+    // Number of untimed rounds to let the JIT settle before measuring
+    final static private int warmupRounds = 3;
+    final static private int measuredRounds = 5;
+
+    // Key shape matches the generator used for test input, 16 random upper case letters
+    final static private int keyLength = 16;
+
+    private static long comparisons = 0;
+
+    /**
+     * Generate random keys
+     * @param count Number of keys to generate
+     * @param random Random source
+     * @return The keys
+     */
+    private static String[] makeKeys (int count, Random random) {
+        String[] keys = new String[count];
+        char[] chars = new char[keyLength];
+        for (int i = 0; i < count; i++) {
+            for (int c = 0; c < keyLength; c++) { chars[c] = (char) ('A' + random.nextInt(26)); }
+            keys[i] = new String(chars);
+        }
+        return keys;
+    }
+
+    /**
+     * Run a replacement selection style workload: fill the heap, replace the root repeatedly, then drain it
+     * @param heapSize Size of the heap
+     * @param input Keys to feed through the heap, the first heapSize fill it
+     * @param arity Arity of the heap
+     * @param comparer Comparison to use
+     * @param keyPrefix Key prefix to cache in the heap, null for none
+     * @return Checksum of the output so the work can't be optimised away
+     */
+    private static long runWorkload (int heapSize, String[] input, int arity, Comparator<String> comparer, ToLongFunction<String> keyPrefix) {
+        String[] initial = new String[heapSize];
+        System.arraycopy(input, 0, initial, 0, heapSize);
+        Heap<String> heap = new Heap<>(initial, comparer, arity, keyPrefix);
+
+        long checksum = 0;
+        for (int i = heapSize; i < input.length; i++) {
+            checksum += heap.replace(input[i]).charAt(0);
+        }
+        while (heap.getHeapSize() > 0) {
+            checksum += heap.remove(false).charAt(0);
+        }
+        return checksum;
+    }
+
+    public static void main (String[] args) {
+        if (args.length < 2) {
+            System.out.println(usage);
+            System.exit(1);
+        }
+        int heapSize = Integer.parseInt(args[0]);
+        int operations = Integer.parseInt(args[1]);
+        int[] arities = { 2, 4, 8 };
+        if (args.length > 2) {
+            arities = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++) { arities[i - 2] = Integer.parseInt(args[i]); }
+        }
+
+        String[] input = makeKeys(heapSize + operations, new Random(0xD5));
+        Comparator<String> counting = (a, b) -> {
+            comparisons++;
+            return a.compareTo(b);
+        };
+
+        System.out.println(String.format("%d element heap, %d replace operations", heapSize, operations));
+        System.out.println(String.format("%-6s %-8s %14s %14s", "arity", "prefix", "ns/op", "compares/op"));
+        long sink = 0;
+        for (int arity : arities) {
+            for (boolean usePrefix : new boolean[] { false, true }) {
+                ToLongFunction<String> keyPrefix = usePrefix ? key -> KeyPrefix.ofString(key, 0) : null;
+                // Count full comparisons separately so the counter doesn't skew the timings
+                comparisons = 0;
+                sink += runWorkload(heapSize, input, arity, counting, keyPrefix);
+                double comparesPerOp = (double) comparisons / input.length;
+
+                for (int i = 0; i < warmupRounds; i++) { sink += runWorkload(heapSize, input, arity, String::compareTo, keyPrefix); }
+                long best = Long.MAX_VALUE;
+                for (int i = 0; i < measuredRounds; i++) {
+                    long start = System.nanoTime();
+                    sink += runWorkload(heapSize, input, arity, String::compareTo, keyPrefix);
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                System.out.println(String.format("%-6d %-8s %14.1f %14.2f", arity, usePrefix ? "yes" : "no", (double) best / input.length, comparesPerOp));
+            }
+        }
+        // Print the checksum so the JIT has to keep the work
+        System.err.println(sink);
+    }
+}
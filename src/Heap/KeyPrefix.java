@@ -0,0 +1,64 @@
+/**
+ * Normalized key prefixes for heap slots
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package Heap;
+
+import java.nio.ByteBuffer;
+
+public class KeyPrefix {
+    // Number of characters packed into a prefix, one byte each
+    final static public int prefixLength = 8;
+
+    private KeyPrefix () { }
+
+    /**
+     * Packs the first characters of a string into a long that orders the same way as String.compareTo, and
+     * as comparing by code point, since the two only differ on characters above 0xFF. Each character takes one byte and missing characters are 0. Characters from 0xFF up can't be told
+     * apart in a byte, so the rest of the prefix is filled with 0xFF from there. That can only make
+     * different strings tie, never reverse their order, so a tie means the strings have to be compared
+     * in full. The sign bit is flipped so prefixes compare as signed longs
+     * @param key String to get the prefix of
+     * @param offset Index of the first character to use
+     * @return The normalized prefix
+     */
+    public static long ofString (String key, int offset) {
+        int end = Math.min(key.length(), offset + prefixLength);
+        long prefix = 0;
+        int used = 0;
+        for (int i = offset; i < end; i++, used++) {
+            char c = key.charAt(i);
+            if (c >= 0xFF) {
+                // Saturate the remaining bytes
+                return ((prefix << 8 * (prefixLength - used)) | (-1L >>> 8 * used)) ^ Long.MIN_VALUE;
+            }
+            prefix = (prefix << 8) | c;
+        }
+        // Pad short keys with zero bytes
+        if (used < prefixLength) { prefix <<= 8 * (prefixLength - used); }
+        return prefix ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * Packs the first bytes of a key into a long that orders the same way as comparing the bytes unsigned.
+     * Missing bytes are 0, so a tie means the keys have to be compared in full.
+     * The sign bit is flipped so prefixes compare as signed longs
+     * @param buffer Buffer holding the key, its position is not used or changed
+     * @param offset Index of the first byte of the key
+     * @param length Length of the key
+     * @return The normalized prefix
+     */
+    public static long ofBytes (ByteBuffer buffer, int offset, int length) {
+        int used = Math.min(length, prefixLength);
+        long prefix = 0;
+        for (int i = 0; i < used; i++) {
+            prefix = (prefix << 8) | (buffer.get(offset + i) & 0xFF);
+        }
+        // Pad short keys with zero bytes
+        if (used < prefixLength) { prefix <<= 8 * (prefixLength - used); }
+        return prefix ^ Long.MIN_VALUE;
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * Heap implementation specialised for long keys carrying an int payload
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package Heap;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.function.IntBinaryOperator;
+
+public class LongIntHeap {
+    private int heapSize;
+    private int usedSize;
+    private long[] keys;
+    private int[] payloads;
+    private IntBinaryOperator tieBreaker;
+
+    public LongIntHeap (long[] rawKeys, int[] rawPayloads, int size) { this(rawKeys, rawPayloads, size, null); }
+
+    /**
+     * Creates a heap that orders equal keys by their payloads.
+     * Useful when the keys are a prefix of a longer key that the payload refers to
+     * @param rawKeys Array of keys
+     * @param rawPayloads Array of payloads, parallel to the keys
+     * @param size Number of elements in use at the start of the arrays
+     * @param tieBreaker Compares the payloads of equal keys, null to leave equal keys unordered
+     */
+    public LongIntHeap (long[] rawKeys, int[] rawPayloads, int size, IntBinaryOperator tieBreaker) {
+        // Set members
+        this.keys = rawKeys;
+        this.payloads = rawPayloads;
+        this.usedSize = size;
+        this.tieBreaker = tieBreaker;
+
+        // Put the arrays in heap order
+        resetHeap();
+    }
+
+    public LongIntHeap (int capacity) { this(new long[capacity], new int[capacity], 0); }
+
+    /**
+     * Gets the index of nodes parent
+     * @param index Index of the child
+     * @return Index of parent
+     */
+    private int getParentIndex (int index) { return (index - 1) / 2; }
+
+    /**
+     * Gets the index of left child
+     * @param index Parent index
+     * @return Index of left child
+     */
+    private int getLeftChildIndex (int index) { return index * 2 + 1; }
+
+    /**
+     * Gets size of the heap
+     * @return Size of the heap
+     */
+    public int getHeapSize () { return heapSize; }
+
+    /**
+     * Gets the max possible capacity of the heap
+     * @return The max capacity of the heap
+     */
+    public int getMaxHeapSize () { return keys.length; }
+
+    /**
+     * Gets the number of free slots in the heap, slots holding kept elements are not free
+     * @return Number of free slots in the heap
+     */
+    public int getFreeNodes () { return keys.length - usedSize; }
+
+    /**
+     * Grows the heap so it can hold at least the given number of elements
+     * @param capacity Number of elements needed
+     */
+    public void ensureCapacity (int capacity) {
+        if (capacity <= keys.length) { return; }
+        keys = Arrays.copyOf(keys, capacity);
+        payloads = Arrays.copyOf(payloads, capacity);
+    }
+
+    /**
+     * Compares two elements, keys first and then payloads if there is a tie breaker
+     * @param keyA Key of the first element
+     * @param payloadA Payload of the first element
+     * @param keyB Key of the second element
+     * @param payloadB Payload of the second element
+     * @return Comparison of the first element against the second
+     */
+    private int compare (long keyA, int payloadA, long keyB, int payloadB) {
+        if (keyA != keyB) { return keyA < keyB ? -1 : 1; }
+        return tieBreaker == null ? 0 : tieBreaker.applyAsInt(payloadA, payloadB);
+    }
+
+    /**
+     * Moves the element at one index to another
+     * @param to Index to move to
+     * @param from Index to move from
+     */
+    private void move (int to, int from) {
+        keys[to] = keys[from];
+        payloads[to] = payloads[from];
+    }
+
+    /**
+     * Heapifies arrays not in heap order
+     */
+    private void buildHeap () {
+        // Start from last parent node so that higher nodes have sub heaps as children
+        for (int i = getParentIndex(heapSize - 1); i >= 0; i--) {
+            downHeap(i, keys[i], payloads[i]);
+        }
+    }
+
+    /**
+     * Perform upheap operation, moving parents down into the hole until key fits
+     * @param index Index of the hole to start at
+     * @param key Key to place
+     * @param payload Payload to place with the key
+     */
+    private void upHeap (int index, long key, int payload) {
+        while (index > 0) {
+            int parentIndex = getParentIndex(index);
+            if (compare(keys[parentIndex], payloads[parentIndex], key, payload) <= 0) { break; }
+            move(index, parentIndex);
+            index = parentIndex;
+        }
+        keys[index] = key;
+        payloads[index] = payload;
+    }
+
+    /**
+     * Perform down heap operation, moving smaller children up into the hole until key fits
+     * @param index Index of the hole to start at
+     * @param key Key to place
+     * @param payload Payload to place with the key
+     */
+    private void downHeap (int index, long key, int payload) {
+        int childIndex;
+        while ((childIndex = getLeftChildIndex(index)) < heapSize) {
+            // Pick the smaller child
+            if (childIndex + 1 < heapSize && compare(keys[childIndex + 1], payloads[childIndex + 1], keys[childIndex], payloads[childIndex]) < 0) { childIndex++; }
+            // Parent is smaller, stop here
+            if (compare(key, payload, keys[childIndex], payloads[childIndex]) <= 0) { break; }
+            move(index, childIndex);
+            index = childIndex;
+        }
+        keys[index] = key;
+        payloads[index] = payload;
+    }
+
+    /**
+     * Insert element into the heap
+     * @param newKey Key to insert
+     * @param newPayload Payload to store with the key
+     * @return True if the heap had space for the element
+     */
+    public boolean insert (long newKey, int newPayload) {
+        // Check if we have space
+        if (usedSize == keys.length) { return false; }
+        // Move the first kept element out of the way
+        if (usedSize > heapSize) { move(usedSize, heapSize); }
+        usedSize++;
+        // Perform upheap operation from the new slot
+        upHeap(heapSize++, newKey, newPayload);
+        return true;
+    }
+
+    /**
+     * Remove top element from the heap
+     * @param keep If the element should be kept at the end of the arrays for the next resetHeap
+     * @return The payload of the removed element
+     * @throws NoSuchElementException If the heap is empty
+     */
+    public int remove (boolean keep) {
+        // Check there is something to remove
+        if (heapSize == 0) { throw new NoSuchElementException("Heap is empty"); }
+
+        long removedKey = keys[0];
+        int removed = payloads[0];
+        // Down heap the tail element from the root to restore heap order
+        heapSize--;
+        long tailKey = keys[heapSize];
+        int tailPayload = payloads[heapSize];
+        keys[heapSize] = removedKey;
+        payloads[heapSize] = removed;
+        if (heapSize > 0) { downHeap(0, tailKey, tailPayload); }
+
+        if (!keep) {
+            // Fill the slot with the last kept element
+            usedSize--;
+            move(heapSize, usedSize);
+        }
+        return removed;
+    }
+
+    /**
+     * Remove root element from heap and insert new element
+     * @param newKey New key to insert
+     * @param newPayload Payload to store with the key
+     * @return Payload of the removed element
+     * @throws NoSuchElementException If the heap is empty
+     */
+    public int replace (long newKey, int newPayload) {
+        // Check there is something to replace
+        if (heapSize == 0) { throw new NoSuchElementException("Heap is empty"); }
+        int curr = payloads[0];
+        // Down heap new element to restore heap order
+        downHeap(0, newKey, newPayload);
+        return curr;
+    }
+
+    /**
+     * Peek at the key on the top of the heap
+     * @return The smallest key
+     * @throws NoSuchElementException If the heap is empty
+     */
+    public long peek () {
+        if (heapSize == 0) { throw new NoSuchElementException("Heap is empty"); }
+        return keys[0];
+    }
+
+    /**
+     * Peek at the payload of the element on the top of the heap
+     * @return The payload stored with the smallest key
+     * @throws NoSuchElementException If the heap is empty
+     */
+    public int peekPayload () {
+        if (heapSize == 0) { throw new NoSuchElementException("Heap is empty"); }
+        return payloads[0];
+    }
+
+    /**
+     * Restores kept elements to the heap and puts it back in heap ordering
+     * @return The size of the new heap
+     */
+    public int resetHeap () {
+        // Kept elements already sit directly after the heap
+        this.heapSize = usedSize;
+
+        // Rebuild the heap
+        buildHeap();
+
+        // Return the size of the heap
+        return getHeapSize();
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Loser tree (tournament tree) implementation
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package Heap;
+
+import java.util.Comparator;
+
+public class LoserTree <T> {
+    private int treeSize;
+    private T[] leaves;
+    private int[] tree;
+    private int[] winners;
+    private Comparator<T> comparer;
+
+    public LoserTree (T[] rawArray, Comparator<T> comparisonFunction) {
+        // Set members
+        this.comparer = comparisonFunction;
+        this.leaves = rawArray;
+        // Node zero holds the overall winner, nodes 1 to leaves - 1 hold the losers of each match
+        this.tree = new int[Math.max(rawArray.length, 1)];
+        this.winners = new int[tree.length];
+
+        // Play the initial tournament
+        rebuild();
+    }
+
+    /**
+     * Gets the index of a nodes parent
+     * @param index Index of the node, leaves are numbered from the number of leaves upwards
+     * @return Index of parent
+     */
+    private int getParentIndex (int index) { return index / 2; }
+
+    /**
+     * Gets the index of the node a leaf sits at
+     * @param leafIndex Index of the leaf
+     * @return Index of the leaf's node
+     */
+    private int getLeafNode (int leafIndex) { return leafIndex + leaves.length; }
+
+    /**
+     * Gets size of the tree
+     * @return Number of leaves that still hold an element
+     */
+    public int getTreeSize () { return treeSize; }
+
+    /**
+     * Checks if the leaf at index a beats the leaf at index b. Empty leaves lose to everything
+     * @param a Index of the first leaf
+     * @param b Index of the second leaf
+     * @return True if a is smaller than b
+     */
+    private boolean beats (int a, int b) {
+        if (leaves[a] == null) { return false; }
+        if (leaves[b] == null) { return true; }
+        return comparer.compare(leaves[a], leaves[b]) < 0;
+    }
+
+    /**
+     * Gets the winner of the sub tree at the given node
+     * @param node Node to get the winner of
+     * @return Index of the winning leaf
+     */
+    private int getWinner (int node) {
+        // Leaves win their own sub tree
+        if (node >= leaves.length) { return node - leaves.length; }
+        return winners[node];
+    }
+
+    /**
+     * Set a leaf without restoring tree order. Call rebuild after setting leaves
+     * @param index Index of the leaf to set
+     * @param newItem Item to put in the leaf, null if the leaf is empty
+     */
+    public void set (int index, T newItem) { leaves[index] = newItem; }
+
+    /**
+     * Plays the whole tournament again from the current leaves
+     * @return The size of the new tree
+     */
+    public int rebuild () {
+        // Count the leaves holding elements
+        treeSize = 0;
+        for (T leaf : leaves) {
+            if (leaf != null) { treeSize++; }
+        }
+
+        // Play matches from the bottom up so children are decided before their parents
+        for (int node = leaves.length - 1; node >= 1; node--) {
+            int left = getWinner(node * 2);
+            int right = getWinner(node * 2 + 1);
+            // Winner moves up, loser stays at this node
+            if (beats(right, left)) {
+                winners[node] = right;
+                tree[node] = left;
+            } else {
+                winners[node] = left;
+                tree[node] = right;
+            }
+        }
+        // Single leaf wins by default
+        tree[0] = leaves.length > 1 ? winners[1] : 0;
+
+        return getTreeSize();
+    }
+
+    /**
+     * Peek at the smallest element in the tree
+     * @return The smallest element, null if tree is empty
+     */
+    public T peek () {
+        // Check there is element to peek at
+        if (treeSize == 0) { return null; }
+        return leaves[tree[0]];
+    }
+
+    /**
+     * Gets the leaf index of the smallest element in the tree
+     * @return Index of the winning leaf, -1 if tree is empty
+     */
+    public int peekIndex () {
+        if (treeSize == 0) { return -1; }
+        return tree[0];
+    }
+
+    /**
+     * Replace the smallest element with the next element from the same leaf.
+     * Only the matches on the path from the leaf to the root are replayed
+     * @param newItem New item for the leaf, null if the leaf has run out of elements
+     * @return Replaced element, null if tree is empty
+     */
+    public T replace (T newItem) {
+        // Check there is something to replace
+        if (treeSize == 0) { return null; }
+
+        int winner = tree[0];
+        T curr = leaves[winner];
+        leaves[winner] = newItem;
+        if (newItem == null) { treeSize--; }
+
+        // Replay matches against the stored losers on the way up
+        for (int node = getParentIndex(getLeafNode(winner)); node > 0; node = getParentIndex(node)) {
+            if (beats(tree[node], winner)) {
+                // Old loser wins this time, new element stays here as the loser
+                int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = winner;
+        return curr;
+    }
+
+    /**
+     * Remove the smallest element, leaving its leaf empty
+     * @return The removed element, null if tree is empty
+     */
+    public T remove () { return replace(null); }
+}
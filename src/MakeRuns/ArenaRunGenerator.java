@@ -0,0 +1,392 @@
+/**
+ * Replacement selection over records kept in a RecordArena
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package MakeRuns;
+
+import Heap.LongIntHeap;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Runs the replacement selection strategy with the records stored off heap.
+ * The heap orders the key prefix of each record with its slot as the payload, and only reads the
+ * records from the arena when two prefixes tie.
+ * Records are admitted while both the record limit and the memory budget allow it, so the heap
+ * grows and shrinks with the length of the records.
+ * When the whole input fits at once it is sorted in one go instead of being drained through the heap.
+ * In adaptive mode records that continue the sorted stretch the input is on are appended to a queue
+ * instead of going into the heap. The queue stays sorted, so the next record to write is the smaller of
+ * its head and the top of the heap, and sorted input costs a comparison or two per record while the heap
+ * only repairs local disorder. The runs are the same as without it
+ */
+class ArenaRunGenerator implements RunGenerator {
+    // Size of each arena block, records are reclaimed a block at a time
+    final static int arenaBlockSize = 1 << 20;
+    // Bytes of bookkeeping per record: heap key and payload, slot handle and free slot entry
+    final static private int slotOverhead = 8 + 4 + 8 + 4;
+    // Extra bookkeeping per record in adaptive mode: queue prefix and slot
+    final static private int queueOverhead = 8 + 4;
+    // Initial number of slots when the heap is sized by memory
+    final static private int initialSlots = 1024;
+    // Handle used when there is no last written record
+    final static private long noRecord = -1;
+    // Records placed before deciding whether the input is sorted enough to keep using the queue
+    final static private int probeWindow = 1024;
+    // Fewest records out of a probe window that have to go to the queue to keep using it
+    final static private int minQueued = probeWindow / 8;
+    // Records to place straight in the heap after a probe window that mostly missed the queue
+    final static private int probeBackoff = 1 << 14;
+
+    private final int maxRecords;
+    private final long memoryBudget;
+    private final LineSource input;
+    private final RecordArena arena = new RecordArena(arenaBlockSize);
+    private final LongIntHeap priorityQueue;
+    private final RecordSorter sorter;
+    private final boolean adaptive;
+    private final int slotCost;
+
+    // Handle of the record in each slot
+    private long[] handles;
+    private int[] freeSlots;
+    private int numFreeSlots = 0;
+    private int nextSlot = 0;
+    private long usedBytes = 0;
+    // True while the input has a line waiting to be admitted
+    private boolean pending;
+
+    // Last written record, kept for comparisons until the next one is written
+    private long lastOut = noRecord;
+    private long lastOutPrefix = 0;
+
+    // Ring buffer of records in sorted order, only used in adaptive mode
+    private int[] queueSlots;
+    private long[] queuePrefixes;
+    private int queueHead = 0;
+    private int queueSize = 0;
+    // Progress of the current probe window, and records left until probing starts again
+    private int probes = 0;
+    private int probeHits = 0;
+    private int probeSkip = 0;
+
+    /**
+     * Creates a run generator
+     * @param maxRecords Maximum number of records to hold at once
+     * @param memoryBudget Maximum number of bytes of records and bookkeeping to hold at once
+     * @param input LineSource to get input from
+     * @param sorter Sort used when the whole input fits at once
+     * @param adaptive True to queue records that are already in order instead of putting them in the heap
+     * @throws IOException
+     */
+    ArenaRunGenerator (int maxRecords, long memoryBudget, LineSource input, RecordSorter sorter, boolean adaptive) throws IOException {
+        this.maxRecords = maxRecords;
+        this.memoryBudget = memoryBudget;
+        this.input = input;
+        this.sorter = sorter;
+        this.adaptive = adaptive;
+        this.slotCost = adaptive ? slotOverhead + queueOverhead : slotOverhead;
+        int capacity = Math.min(maxRecords, initialSlots);
+        this.handles = new long[capacity];
+        this.freeSlots = new int[capacity];
+        this.queueSlots = new int[adaptive ? capacity : 0];
+        this.queuePrefixes = new long[adaptive ? capacity : 0];
+        this.priorityQueue = new LongIntHeap(new long[capacity], new int[capacity], 0,
+                (a, b) -> arena.compare(handles[a], handles[b]));
+        this.pending = input.next();
+    }
+
+    /**
+     * Gets the number of bytes a record takes up, including its bookkeeping
+     * @param length Length of the record
+     * @return Number of bytes
+     */
+    private long getCost (int length) { return RecordArena.getStoredSize(length) + slotCost; }
+
+    /**
+     * Gets the number of slots holding a record, either in the heap or kept for the next run
+     * @return Number of slots in use
+     */
+    private int getUsedSlots () { return nextSlot - numFreeSlots; }
+
+    /**
+     * Checks if the pending line can be admitted
+     * @param reuseSlot True if the line takes the slot of a record that was just written
+     * @return True if there is a pending line and it fits
+     */
+    private boolean canAdmit (boolean reuseSlot) {
+        if (!pending) { return false; }
+        if (!reuseSlot && getUsedSlots() >= maxRecords) { return false; }
+        // Always admit something into an empty heap so a single huge record can't stall the runs
+        if (getUsedSlots() == 0) { return true; }
+        return usedBytes + getCost(input.getLength()) <= memoryBudget;
+    }
+
+    /**
+     * Gets an empty slot, growing the slot arrays if needed
+     * @return Index of the slot
+     */
+    private int takeSlot () {
+        if (numFreeSlots > 0) { return freeSlots[--numFreeSlots]; }
+        if (nextSlot == handles.length) {
+            int capacity = (int) Math.min((long) handles.length * 2, maxRecords);
+            handles = Arrays.copyOf(handles, capacity);
+            freeSlots = Arrays.copyOf(freeSlots, capacity);
+            priorityQueue.ensureCapacity(capacity);
+            if (adaptive) { growQueue(capacity); }
+        }
+        return nextSlot++;
+    }
+
+    /**
+     * Copies the pending line into a slot and moves to the next line
+     * @param slot Slot to put the line in
+     * @return Key prefix of the line
+     * @throws IOException
+     */
+    private long admit (int slot) throws IOException {
+        handles[slot] = input.addTo(arena);
+        usedBytes += getCost(input.getLength());
+        pending = input.next();
+        return arena.getPrefix(handles[slot]);
+    }
+
+    /**
+     * Releases a record that is no longer needed
+     * @param handle Handle of the record
+     */
+    private void release (long handle) {
+        usedBytes -= getCost(arena.getLength(handle));
+        arena.release(handle);
+    }
+
+    /**
+     * Admits pending lines into new slots while they fit
+     * @throws IOException
+     */
+    private void fill () throws IOException {
+        while (canAdmit(false)) {
+            int slot = takeSlot();
+            long prefix = admit(slot);
+            if (adaptive) {
+                place(slot, prefix);
+            } else {
+                priorityQueue.insert(prefix, slot);
+            }
+        }
+    }
+
+    /**
+     * Compares two records, prefixes first and then the full records
+     * @param prefixA Prefix of the first record
+     * @param handleA Handle of the first record
+     * @param prefixB Prefix of the second record
+     * @param handleB Handle of the second record
+     * @return Comparison of the first record against the second
+     */
+    private int compare (long prefixA, long handleA, long prefixB, long handleB) {
+        if (prefixA != prefixB) { return prefixA < prefixB ? -1 : 1; }
+        return arena.compare(handleA, handleB);
+    }
+
+    /**
+     * Grows the queue, unwrapping it to the start of the new arrays
+     * @param capacity New capacity
+     */
+    private void growQueue (int capacity) {
+        int[] slots = new int[capacity];
+        long[] prefixes = new long[capacity];
+        for (int i = 0; i < queueSize; i++) {
+            int index = (queueHead + i) % queueSlots.length;
+            slots[i] = queueSlots[index];
+            prefixes[i] = queuePrefixes[index];
+        }
+        queueSlots = slots;
+        queuePrefixes = prefixes;
+        queueHead = 0;
+    }
+
+    /**
+     * Gets the index in the queue arrays of the record at the tail of the queue
+     * @return Index of the tail
+     */
+    private int getQueueTail () { return (queueHead + queueSize - 1) % queueSlots.length; }
+
+    /**
+     * Puts an admitted record in the queue if it keeps the queue sorted and belongs to the current run,
+     * otherwise in the heap. Placements are counted in windows, and when too few reach the queue the input
+     * is treated as unsorted and records go straight to the heap for a while
+     * @param slot Slot of the record
+     * @param prefix Prefix of the record
+     */
+    private void place (int slot, long prefix) {
+        if (probeSkip > 0) {
+            probeSkip--;
+            priorityQueue.insert(prefix, slot);
+            return;
+        }
+        boolean queued;
+        if (queueSize > 0) {
+            // Queued records are all in the current run, so not being below the tail is enough
+            int tail = getQueueTail();
+            queued = compare(prefix, handles[slot], queuePrefixes[tail], handles[queueSlots[tail]]) >= 0;
+        } else {
+            queued = lastOut == noRecord || compare(prefix, handles[slot], lastOutPrefix, lastOut) >= 0;
+        }
+        if (queued) {
+            int index = (queueHead + queueSize) % queueSlots.length;
+            queueSlots[index] = slot;
+            queuePrefixes[index] = prefix;
+            queueSize++;
+            probeHits++;
+        } else {
+            priorityQueue.insert(prefix, slot);
+        }
+        if (++probes == probeWindow) {
+            if (probeHits < minQueued) { probeSkip = probeBackoff; }
+            probes = 0;
+            probeHits = 0;
+        }
+    }
+
+    /**
+     * Writes a record and makes it the last record written
+     * @param slot Slot of the record
+     * @param prefix Prefix of the record
+     * @param output Writer to write the record with
+     * @throws IOException
+     */
+    private void writeOut (int slot, long prefix, RunWriter output) throws IOException {
+        output.writeRecord(arena, handles[slot]);
+        if (lastOut != noRecord) { release(lastOut); }
+        lastOut = handles[slot];
+        lastOutPrefix = prefix;
+        freeSlots[numFreeSlots++] = slot;
+    }
+
+    /**
+     * Generates runs with records that are in order kept in the queue
+     * @param output Writer to write runs with
+     * @throws IOException
+     */
+    private void runAdaptive (RunWriter output) throws IOException {
+        while (priorityQueue.getHeapSize() > 0 || queueSize > 0) {
+            if (priorityQueue.getHeapSize() > 0) {
+                long top = priorityQueue.peek();
+                int slot = priorityQueue.peekPayload();
+                if (lastOut != noRecord && compare(top, handles[slot], lastOutPrefix, lastOut) < 0) {
+                    // Too small for this run, save it at the end of the array
+                    priorityQueue.remove(true);
+                } else if (queueSize == 0 || compare(top, handles[slot], queuePrefixes[queueHead], handles[queueSlots[queueHead]]) < 0) {
+                    writeOut(priorityQueue.remove(false), top, output);
+                    fill();
+                } else {
+                    writeQueueHead(output);
+                }
+            } else {
+                writeQueueHead(output);
+            }
+            // Check if we have processed all the elements
+            if (priorityQueue.getHeapSize() == 0 && queueSize == 0) {
+                // Start next run
+                release(lastOut);
+                lastOut = noRecord;
+                output.endRun();
+                priorityQueue.resetHeap();
+                fill();
+            }
+        }
+    }
+
+    /**
+     * Writes the record at the head of the queue
+     * @param output Writer to write the record with
+     * @throws IOException
+     */
+    private void writeQueueHead (RunWriter output) throws IOException {
+        int slot = queueSlots[queueHead];
+        long prefix = queuePrefixes[queueHead];
+        queueHead = (queueHead + 1) % queueSlots.length;
+        queueSize--;
+        writeOut(slot, prefix, output);
+        fill();
+    }
+
+    /**
+     * Sorts every record held and writes them as a single run. Only used before any record has been
+     * written, while the slots are still filled in order
+     * @param output Writer to write the run with
+     * @throws IOException
+     */
+    private void writeSorted (RunWriter output) throws IOException {
+        int size = getUsedSlots();
+        long[] prefixes = new long[size];
+        for (int i = 0; i < size; i++) { prefixes[i] = arena.getPrefix(handles[i]); }
+        sorter.sort(arena, prefixes, handles, size);
+        for (int i = 0; i < size; i++) {
+            output.writeRecord(arena, handles[i]);
+            release(handles[i]);
+        }
+        output.endRun();
+    }
+
+    @Override
+    public void run (RunWriter output) throws IOException {
+        fill();
+        if (!pending && getUsedSlots() > 0) {
+            // Everything fit, a sort beats sifting each record through the heap
+            writeSorted(output);
+            output.flush();
+            return;
+        }
+        if (adaptive) {
+            runAdaptive(output);
+            output.flush();
+            return;
+        }
+
+        // Loop while there are values to process
+        while (priorityQueue.getHeapSize() > 0) {
+            // Get next value
+            long top = priorityQueue.peek();
+            int slot = priorityQueue.peekPayload();
+            // Check if value can be written to output stream
+            if (lastOut == noRecord || top > lastOutPrefix || (top == lastOutPrefix && arena.compare(handles[slot], lastOut) >= 0)) {
+                // Write value out
+                output.writeRecord(arena, handles[slot]);
+                // Last record is only needed for comparing until the next one is written
+                if (lastOut != noRecord) { release(lastOut); }
+                lastOut = handles[slot];
+                lastOutPrefix = top;
+                if (canAdmit(true)) {
+                    // Replace written element with next, reusing its slot
+                    priorityQueue.replace(admit(slot), slot);
+                } else {
+                    // Next element doesn't fit yet - shrink the heap
+                    priorityQueue.remove(false);
+                    freeSlots[numFreeSlots++] = slot;
+                }
+                // Short records can leave room to grow the heap
+                fill();
+            } else {
+                // Remove from the heap, saving the value at the end of the array
+                priorityQueue.remove(true);
+            }
+            // Check if we have processed all the elements
+            if (priorityQueue.getHeapSize() == 0) {
+                // Start next run
+                release(lastOut);
+                lastOut = noRecord;
+                output.endRun();
+                // Reset the heap, topping it up with the memory the last run freed
+                priorityQueue.resetHeap();
+                fill();
+            }
+        }
+        output.flush();
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Writes blocks of the binary runs format
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package MakeRuns;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Fills records into blocks of the binary TapeFormat and writes each block out with its header once
+ * it is full or the run ends. Shared by MakeRuns and PolyMerge so both write exactly the same format.
+ * With compression each block is deflated on its own, so any run can still be read without the
+ * blocks before it
+ */
+public class BlockWriter {
+    // Most bytes a record length can take as a varint
+    final static private int maxLengthSize = 5;
+
+    private OutputStream output;
+    private final Deflater deflater;
+    private byte[] block = new byte[TapeFormat.blockSize];
+    private int blockLength = 0;
+    private int blockRecords = 0;
+    private byte[] compressed;
+    // Bytes written to the stream so far
+    private long position = 0;
+
+    /**
+     * Creates a writer
+     * @param output Stream to write blocks to, null if it is set with setOutput before the first block
+     * @param compress True to deflate each block
+     */
+    public BlockWriter (OutputStream output, boolean compress) {
+        this.output = output;
+        this.deflater = compress ? new Deflater(Deflater.BEST_SPEED, true) : null;
+        this.compressed = compress ? new byte[TapeFormat.blockSize] : null;
+    }
+
+    /**
+     * Moves on to writing to another stream, which can only be done between runs
+     * @param output Stream to write the next blocks to
+     */
+    void setOutput (OutputStream output) { this.output = output; }
+
+    /**
+     * Gets the number of bytes written to the stream
+     * @return Number of bytes
+     */
+    public long getPosition () { return position; }
+
+    /**
+     * Writes the header that starts a runs file
+     * @throws IOException
+     */
+    public void writeHeader () throws IOException {
+        TapeFormat.writeHeader(output, deflater != null);
+        position += TapeFormat.getHeaderLength();
+    }
+
+    /**
+     * Makes room for a record in the block, writing the block out first if the record would overflow it.
+     * The length of the record is put in the block.
+     * A record bigger than a block gets a block of its own, grown to fit it and dropped once written, so
+     * block may be replaced and blockLength moves: callers must reserve before touching either
+     * @param length Length of the record
+     * @return Offset in the block to put the record bytes at
+     * @throws IOException
+     */
+    private int reserve (int length) throws IOException {
+        if (blockRecords > 0 && blockLength + maxLengthSize + length > TapeFormat.blockSize) { writeBlock(); }
+        if (block.length < blockLength + maxLengthSize + length) {
+            block = Arrays.copyOf(block, blockLength + maxLengthSize + length);
+        }
+        blockLength = TapeFormat.putVarint(length, block, blockLength);
+        blockRecords++;
+        return blockLength;
+    }
+
+    /**
+     * Writes a record from an arena, copying it straight into the block
+     * @param arena Arena holding the record
+     * @param handle Handle of the record
+     * @throws IOException
+     */
+    void writeRecord (RecordArena arena, long handle) throws IOException {
+        int at = reserve(arena.getLength(handle));
+        blockLength = at + arena.copyTo(handle, block, at);
+    }
+
+    /**
+     * Writes a record from an array
+     * @param source Array holding the record
+     * @param offset Offset of the record in the array
+     * @param length Length of the record
+     * @throws IOException
+     */
+    public void writeRecord (byte[] source, int offset, int length) throws IOException {
+        int at = reserve(length);
+        System.arraycopy(source, offset, block, at, length);
+        blockLength = at + length;
+    }
+
+    /**
+     * Deflates the block
+     * @return Length of the deflated block, or -1 if it doesn't get any smaller
+     */
+    private int compress () {
+        if (compressed.length < blockLength) { compressed = new byte[block.length]; }
+        deflater.reset();
+        deflater.setInput(block, 0, blockLength);
+        deflater.finish();
+        int length = 0;
+        // Give up once the output is as big as the block
+        while (!deflater.finished() && length < blockLength) {
+            length += deflater.deflate(compressed, length, blockLength - length);
+        }
+        return deflater.finished() && length < blockLength ? length : -1;
+    }
+
+    /**
+     * Writes out the block with its header
+     * @throws IOException
+     */
+    private void writeBlock () throws IOException {
+        if (blockRecords == 0) { return; }
+        TapeFormat.writeVarint(blockRecords, output);
+        TapeFormat.writeVarint(blockLength, output);
+        position += TapeFormat.getVarintSize(blockRecords) + TapeFormat.getVarintSize(blockLength);
+        byte[] stored = block;
+        int storedLength = blockLength;
+        if (deflater != null) {
+            // Blocks that don't shrink are stored as they are, which a stored length equal to the block length marks
+            int length = compress();
+            if (length >= 0) {
+                stored = compressed;
+                storedLength = length;
+            }
+            TapeFormat.writeVarint(storedLength, output);
+            position += TapeFormat.getVarintSize(storedLength);
+        }
+        output.write(stored, 0, storedLength);
+        position += storedLength;
+        blockLength = 0;
+        blockRecords = 0;
+        // Drop a block that grew for a huge record
+        if (block.length > TapeFormat.blockSize) { block = new byte[TapeFormat.blockSize]; }
+        if (compressed != null && compressed.length > TapeFormat.blockSize) { compressed = new byte[TapeFormat.blockSize]; }
+    }
+
+    /**
+     * Ends the current run
+     * @throws IOException
+     */
+    public void endRun () throws IOException {
+        writeBlock();
+        // A block of no records ends the run
+        TapeFormat.writeVarint(0, output);
+        position++;
+    }
+
+    /**
+     * Writes out any partly filled block and frees the compressor. The stream is left open
+     * @throws IOException
+     */
+    public void close () throws IOException {
+        writeBlock();
+        if (deflater != null) { deflater.end(); }
+    }
+}
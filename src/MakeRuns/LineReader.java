@@ -0,0 +1,97 @@
+/**
+ * Byte level line reader
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package MakeRuns;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Splits a stream into lines without decoding it, so no String is created per line.
+ * Used for piped input that can't be memory mapped
+ */
+class LineReader implements LineSource {
+    private final InputStream input;
+    private byte[] buffer;
+    private int start = 0;
+    private int end = 0;
+    private boolean finished = false;
+
+    private int lineOffset;
+    private int lineLength;
+
+    LineReader (InputStream input, int bufferSize) {
+        this.input = input;
+        this.buffer = new byte[bufferSize];
+    }
+
+    @Override
+    public int getLength () { return lineLength; }
+
+    @Override
+    public long addTo (RecordArena arena) { return arena.add(buffer, lineOffset, lineLength); }
+
+    /**
+     * Fills the buffer with more input, moving the unread bytes to the front and growing it if a line doesn't fit
+     * @return False if the input has finished
+     * @throws IOException
+     */
+    private boolean fill () throws IOException {
+        if (finished) { return false; }
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        if (end == buffer.length) { buffer = Arrays.copyOf(buffer, buffer.length * 2); }
+        int read = input.read(buffer, end, buffer.length - end);
+        if (read < 0) {
+            finished = true;
+            return false;
+        }
+        end += read;
+        return true;
+    }
+
+    @Override
+    public boolean next () throws IOException {
+        int scanFrom = start;
+        while (true) {
+            for (int i = scanFrom; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    setLine(start, i);
+                    start = i + 1;
+                    return true;
+                }
+            }
+            // Keep the scanned position relative to the line start across a refill
+            scanFrom = end - start;
+            if (!fill()) { break; }
+            scanFrom += start;
+        }
+        // Last line with no line ending
+        if (start == end) { return false; }
+        setLine(start, end);
+        start = end;
+        return true;
+    }
+
+    /**
+     * Sets the current line, dropping a \r before the line ending
+     * @param from Offset of the first byte of the line
+     * @param to Offset of the line ending
+     */
+    private void setLine (int from, int to) {
+        if (to > from && buffer[to - 1] == '\r') { to--; }
+        lineOffset = from;
+        lineLength = to - from;
+    }
+
+    @Override
+    public void close () throws IOException { input.close(); }
+}
@@ -0,0 +1,42 @@
+/**
+ * Source of input lines for run generation
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package MakeRuns;
+
+import java.io.IOException;
+
+/**
+ * Splits input into lines as raw bytes. Lines end at \n, with a trailing \r removed,
+ * the same as BufferedReader.readLine
+ */
+interface LineSource {
+    /**
+     * Moves to the next line
+     * @return True if there was another line, false if the input has finished
+     * @throws IOException
+     */
+    boolean next () throws IOException;
+
+    /**
+     * Gets the length of the current line, not including the line ending
+     * @return Length of the line
+     */
+    int getLength ();
+
+    /**
+     * Copies the current line into an arena
+     * @param arena Arena to copy into
+     * @return Handle of the copied line
+     */
+    long addTo (RecordArena arena);
+
+    /**
+     * Closes the underlying input
+     * @throws IOException
+     */
+    void close () throws IOException;
+}
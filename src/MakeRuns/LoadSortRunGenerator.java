@@ -0,0 +1,101 @@
+/**
+ * Load-sort-store run generation over records kept in a RecordArena
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package MakeRuns;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Fills memory with records, sorts them all at once and writes them out as one run.
+ * Runs are only as long as memory allows, unlike replacement selection, but the sort can use every core
+ * and reads each record sequentially instead of through a heap
+ */
+class LoadSortRunGenerator implements RunGenerator {
+    // Bytes of bookkeeping per record: prefix and handle, plus their copies if the sort needs scratch space
+    final static private int recordOverhead = 8 + 8 + 8 + 8;
+    // Initial number of records when loads are sized by memory
+    final static private int initialRecords = 1024;
+
+    private final int maxRecords;
+    private final long memoryBudget;
+    private final LineSource input;
+    private final RecordArena arena = new RecordArena(ArenaRunGenerator.arenaBlockSize);
+    private final RecordSorter sorter;
+
+    private long[] prefixes;
+    private long[] handles;
+    // True while the input has a line waiting to be loaded
+    private boolean pending;
+
+    /**
+     * Creates a run generator
+     * @param maxRecords Maximum number of records to load at once
+     * @param memoryBudget Maximum number of bytes of records and bookkeeping to load at once
+     * @param input LineSource to get input from
+     * @param sorter Sort to sort each load with
+     * @throws IOException
+     */
+    LoadSortRunGenerator (int maxRecords, long memoryBudget, LineSource input, RecordSorter sorter) throws IOException {
+        this.maxRecords = maxRecords;
+        this.memoryBudget = memoryBudget;
+        this.input = input;
+        this.sorter = sorter;
+        int capacity = Math.min(maxRecords, initialRecords);
+        this.prefixes = new long[capacity];
+        this.handles = new long[capacity];
+        this.pending = input.next();
+    }
+
+    /**
+     * Gets the number of bytes a record takes up, including its bookkeeping
+     * @param length Length of the record
+     * @return Number of bytes
+     */
+    private static long getCost (int length) { return RecordArena.getStoredSize(length) + recordOverhead; }
+
+    /**
+     * Loads lines until the record limit or memory budget is reached. At least one line is always
+     * loaded so a single huge record still makes a run
+     * @return Number of records loaded
+     * @throws IOException
+     */
+    private int load () throws IOException {
+        int size = 0;
+        long usedBytes = 0;
+        while (pending && size < maxRecords) {
+            long cost = getCost(input.getLength());
+            if (size > 0 && usedBytes + cost > memoryBudget) { break; }
+            if (size == handles.length) {
+                int capacity = (int) Math.min((long) size * 2, maxRecords);
+                prefixes = Arrays.copyOf(prefixes, capacity);
+                handles = Arrays.copyOf(handles, capacity);
+            }
+            handles[size] = input.addTo(arena);
+            prefixes[size] = arena.getPrefix(handles[size]);
+            usedBytes += cost;
+            size++;
+            pending = input.next();
+        }
+        return size;
+    }
+
+    @Override
+    public void run (RunWriter output) throws IOException {
+        while (pending) {
+            int size = load();
+            sorter.sort(arena, prefixes, handles, size);
+            // Write the load out as one run, freeing the arena for the next load
+            for (int i = 0; i < size; i++) {
+                output.writeRecord(arena, handles[i]);
+                arena.release(handles[i]);
+            }
+            output.endRun();
+        }
+        output.flush();
+    }
+}
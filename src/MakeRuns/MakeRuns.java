@@ -8,14 +8,61 @@
 package MakeRuns;
 
 import Heap.Heap;
+import Heap.KeyPrefix;
+import Heap.LongIntHeap;
 
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class MakeRuns {
-    final static private String usage = "Usage: java MakeRuns <memory_size> <input_file> <output_file>";
+    final static private String usage = "Usage: java MakeRuns [--numeric | --arena] [--arity=<children>] [--memory=<bytes>] [--threads=<workers>] [--strategy=replace|load-sort|two-heap] [--sort=multikey|merge] [--adaptive] [--format=text|binary] [--compress] [<heap_size>] <input_file> <output_file>";
+
+    // Order records by their value as a signed long instead of as text
+    private static boolean numericKeys = false;
+    // Number of children per heap node, wider heaps are shallower and keep siblings on the same cache line
+    private static int heapArity = 4;
+    // Keep raw record bytes in an off heap arena instead of one String per record
+    private static boolean useArena = false;
+    // Memory budget for records when no heap size is given, -1 to derive it from the maximum heap size
+    private static long memoryBudget = -1;
+
+    // Number of replacement selection workers to run at once
+    private static int threads = 1;
+
+    // Run generation strategies for the byte level path
+    final static private String replaceStrategy = "replace";
+    final static private String loadSortStrategy = "load-sort";
+    final static private String twoHeapStrategy = "two-heap";
+    private static String strategy = replaceStrategy;
+
+    // In memory sorts for loads, and for inputs that fit in memory
+    final static private String multikeySort = "multikey";
+    final static private String mergeSort = "merge";
+    private static String sortKernel = multikeySort;
+
+    // Write lines that are already in order straight through instead of through the heap
+    private static boolean adaptive = false;
+
+    // Formats runs can be written in, see TapeFormat for the binary one
+    final static private String textFormat = "text";
+    final static private String binaryFormat = "binary";
+    private static String format = textFormat;
+    // Deflate each block of binary runs
+    private static boolean compress = false;
+
+    // Size of the buffers used for byte level input and output
+    final static private int byteBufferSize = 1 << 16;
+    // Largest number of records a heap can hold
+    final static private int maxHeapRecords = Integer.MAX_VALUE - 8;
 
     /**
      * Get usage string
@@ -47,6 +94,101 @@ public class MakeRuns {
         return  memorySize;
     }
 
+    /**
+     * Get the memory budget from the command line option
+     * @param arg The option value to parse, a number of bytes with an optional k, m or g suffix
+     * @return The parsed value in bytes
+     */
+    private static long getMemoryBudget (String arg) {
+        long multiplier = 1;
+        String number = arg;
+        char suffix = arg.isEmpty() ? ' ' : Character.toLowerCase(arg.charAt(arg.length() - 1));
+        if (suffix == 'k' || suffix == 'm' || suffix == 'g') {
+            multiplier = suffix == 'k' ? 1L << 10 : suffix == 'm' ? 1L << 20 : 1L << 30;
+            number = arg.substring(0, arg.length() - 1);
+        }
+        long budget = 0;
+        try { budget = Long.parseLong(number) * multiplier; }
+        catch (NumberFormatException e) {
+            printAndExit(String.format("Could not parse `memory` option `%s`", arg));
+        }
+        if (budget <= 0) { printAndExit("Memory budget has to be greater than zero"); }
+        return budget;
+    }
+
+    /**
+     * Gets the default memory budget. Records live in direct memory, which is limited to the maximum
+     * heap size by default, and half of it is left for the heap arrays and buffers
+     * @return Default budget in bytes
+     */
+    private static long getDefaultMemoryBudget () { return Runtime.getRuntime().maxMemory() / 2; }
+
+    /**
+     * Get the number of workers from the command line option
+     * @param arg The option value to parse
+     * @return The parsed value
+     */
+    private static int getThreads (String arg) {
+        int workers = 0;
+        try { workers = Integer.parseInt(arg); }
+        catch (NumberFormatException e) {
+            printAndExit(String.format("Could not parse `threads` option `%s`", arg));
+        }
+        if (workers <= 0) { printAndExit("Number of threads has to be greater than zero"); }
+        return workers;
+    }
+
+    /**
+     * Get the run generation strategy from the command line option
+     * @param arg The option value to parse
+     * @return The strategy
+     */
+    private static String getStrategy (String arg) {
+        if (!arg.equals(replaceStrategy) && !arg.equals(loadSortStrategy) && !arg.equals(twoHeapStrategy)) {
+            printAndExit(String.format("Unknown strategy `%s`, expected `%s`, `%s` or `%s`", arg, replaceStrategy, loadSortStrategy, twoHeapStrategy));
+        }
+        return arg;
+    }
+
+    /**
+     * Get the in memory sort from the command line option
+     * @param arg The option value to parse
+     * @return The sort
+     */
+    private static String getSortKernel (String arg) {
+        if (!arg.equals(multikeySort) && !arg.equals(mergeSort)) {
+            printAndExit(String.format("Unknown sort `%s`, expected `%s` or `%s`", arg, multikeySort, mergeSort));
+        }
+        return arg;
+    }
+
+    /**
+     * Get the runs file format from the command line option
+     * @param arg The option value to parse
+     * @return The format
+     */
+    private static String getFormat (String arg) {
+        if (!arg.equals(textFormat) && !arg.equals(binaryFormat)) {
+            printAndExit(String.format("Unknown format `%s`, expected `%s` or `%s`", arg, textFormat, binaryFormat));
+        }
+        return arg;
+    }
+
+    /**
+     * Get the arity of the heap from the command line option
+     * @param arg The option value to parse
+     * @return The parsed value
+     */
+    private static int getArity (String arg) {
+        int arity = 0;
+        try { arity = Integer.parseInt(arg); }
+        catch (NumberFormatException e) {
+            printAndExit(String.format("Could not parse `arity` option `%s`", arg));
+        }
+        if (arity < 2) { printAndExit("Arity has to be at least two"); }
+        return arity;
+    }
+
     /**
      * Open and clear the contents of the file
      * @param file File to open
@@ -87,6 +229,45 @@ public class MakeRuns {
         }
     }
 
+    /**
+     * Get byte output stream for specified file
+     * @param outputFilename Path to the file
+     * @return OutputStream for the file
+     */
+    private static OutputStream getOutByteStream (String outputFilename) {
+        try {
+            if(outputFilename.equals("-")) {
+                return new BufferedOutputStream(System.out, byteBufferSize);
+            }
+            return new BufferedOutputStream(Files.newOutputStream(Paths.get(outputFilename), StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.CREATE), byteBufferSize);
+        } catch (java.io.IOException e) {
+            printAndExit(String.format("Couldn't create output file `%s`", outputFilename));
+            return null;
+        }
+    }
+
+    /**
+     * Get byte input for specified file. Regular files are memory mapped, anything else is streamed
+     * @param inputFilename Path to the file
+     * @return LineSource for the file
+     */
+    private static LineSource getInByteStream (String inputFilename) {
+        try {
+            if(inputFilename.equals("-")) {
+                return new LineReader(System.in, byteBufferSize);
+            }
+            Path inputPath = Paths.get(inputFilename);
+            if(Files.isRegularFile(inputPath)) {
+                return new MappedLineReader(inputPath);
+            }
+            // Pipes and devices can't be mapped
+            return new LineReader(Files.newInputStream(inputPath), byteBufferSize);
+        } catch (java.io.IOException e) {
+            printAndExit(String.format("Couldn't get input file `%s`", inputFilename));
+            return null;
+        }
+    }
+
     /**
      * Get input stream for specified file
      * @param inputFilename Path to the file
@@ -126,6 +307,57 @@ public class MakeRuns {
         }
     }
 
+    /**
+     * Parse the numeric key of a record, skipping the - prefix
+     * @param record Record to parse
+     * @return The parsed key
+     */
+    private static long parseNumericKey (String record) {
+        int length = record.length();
+        int i = 1;
+        boolean negative = false;
+        if (i < length && (record.charAt(i) == '-' || record.charAt(i) == '+')) {
+            negative = record.charAt(i) == '-';
+            i++;
+        }
+        if (i == length) { printAndExit(String.format("Could not parse numeric key `%s`", record.substring(1))); }
+        // Accumulate negatively so the minimum long can be parsed
+        long key = 0;
+        for (; i < length; i++) {
+            int digit = record.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || key < (Long.MIN_VALUE + digit) / 10) {
+                printAndExit(String.format("Could not parse numeric key `%s`", record.substring(1)));
+            }
+            key = key * 10 - digit;
+        }
+        if (!negative && key == Long.MIN_VALUE) { printAndExit(String.format("Could not parse numeric key `%s`", record.substring(1))); }
+        return negative ? key : -key;
+    }
+
+    /**
+     * Compare records in code point order, which is the unsigned byte order of their UTF-8 encoding that
+     * PolyMerge merges in. String.compareTo compares UTF-16 chars, which puts characters above U+FFFF before
+     * U+E000 to U+FFFF, so runs sorted with it would be out of order for the merge
+     * @param a First record
+     * @param b Second record
+     * @return Negative, zero or positive as a is before, equal to or after b
+     */
+    private static int compareCodePoints (String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        for (int i = 0; i < length; i++) {
+            char x = a.charAt(i);
+            char y = b.charAt(i);
+            if (x == y) { continue; }
+            // Move surrogates above the rest of the chars so pairs order by the code point they encode
+            if (x >= 0xD800 && y >= 0xD800) {
+                x += x >= 0xE000 ? -0x800 : 0x2000;
+                y += y >= 0xE000 ? -0x800 : 0x2000;
+            }
+            return x - y;
+        }
+        return a.length() - b.length();
+    }
+
     /**
      * Write line to output
      * @param toWrite Line to write
@@ -158,12 +390,14 @@ public class MakeRuns {
      * @param runSize Size of the heap to use
      * @param iStream BufferedReader to get input from
      * @param oStream BufferedWriter to write runs to
+     * @param outputFilename Path to the output file, - for stdout
      */
-    private static void runMakeRuns (int runSize, BufferedReader iStream, BufferedWriter oStream) {
+    private static void runMakeRuns (int runSize, BufferedReader iStream, BufferedWriter oStream, String outputFilename) {
         try {
             // Read in initial values and create heap
             String[] initialHeapArray = readInInitial(runSize, iStream);
-            Heap<String> priorityQueue = new Heap<>(initialHeapArray, String::compareTo);
+            // Cache a prefix of each key after the - so most comparisons don't touch the strings
+            Heap<String> priorityQueue = new Heap<>(initialHeapArray, MakeRuns::compareCodePoints, heapArity, record -> KeyPrefix.ofString(record, 1));
 
             int runs = 0;
 
@@ -173,7 +407,7 @@ public class MakeRuns {
                 // Get next value
                 String top = priorityQueue.peek();
                 // Check if value can be written to output stream
-                if(lastOut == null || top.compareTo(lastOut) >= 0) {
+                if(lastOut == null || compareCodePoints(top, lastOut) >= 0) {
                     // Write value out
                     lastOut = top;
                     tryWriteLine(top, oStream);
@@ -202,24 +436,382 @@ public class MakeRuns {
             oStream.flush();
             iStream.close();
             oStream.close();
-            System.out.println("Produced " + runs + " runs");
+            printRunCount(runs, outputFilename);
+        } catch (IOException e) {
+            printAndExit("Error occured while generating runs\n\n" + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs the replacement selection strategy algorithm on numeric keys.
+     * Keys are kept in a primitive heap, with the payload pointing at the record slot the key came from
+     * @param runSize Size of the heap to use
+     * @param iStream BufferedReader to get input from
+     * @param oStream BufferedWriter to write runs to
+     * @param outputFilename Path to the output file, - for stdout
+     */
+    private static void runMakeNumericRuns (int runSize, BufferedReader iStream, BufferedWriter oStream, String outputFilename) {
+        try {
+            // Read in initial values and create heap
+            String[] records = readInInitial(runSize, iStream);
+            long[] initialKeys = new long[runSize];
+            int[] initialSlots = new int[runSize];
+            int initialSize = 0;
+            while (initialSize < runSize && records[initialSize] != null) {
+                initialKeys[initialSize] = parseNumericKey(records[initialSize]);
+                initialSlots[initialSize] = initialSize;
+                initialSize++;
+            }
+            LongIntHeap priorityQueue = new LongIntHeap(initialKeys, initialSlots, initialSize);
+
+            int runs = 0;
+
+            long lastOut = 0;
+            boolean runStarted = false;
+            // Loop while there are values to process
+            while (priorityQueue.getHeapSize() > 0) {
+                // Get next value
+                long top = priorityQueue.peek();
+                // Check if value can be written to output stream
+                if(!runStarted || top >= lastOut) {
+                    // Write value out
+                    int slot = priorityQueue.peekPayload();
+                    lastOut = top;
+                    runStarted = true;
+                    tryWriteLine(records[slot], oStream);
+                    // Replace written element with next, reusing its record slot
+                    records[slot] = tryReadLine(iStream);
+                    if(records[slot] != null)
+                        priorityQueue.replace(parseNumericKey(records[slot]), slot);
+                    // No next element - remove from the heap permanantly
+                    else
+                        priorityQueue.remove(false);
+                } else {
+                    // Remove from the heap, saving the value at the end of the array
+                    priorityQueue.remove(true);
+                }
+                // Check if we have processed all the elements
+                if(priorityQueue.getHeapSize() == 0) {
+                    // Start next run
+                    runStarted = false;
+                    tryWriteLine("", oStream);
+                    // Reset the heap
+                    priorityQueue.resetHeap();
+                    runs++;
+                }
+            }
+
+            // Close files
+            oStream.flush();
+            iStream.close();
+            oStream.close();
+            printRunCount(runs, outputFilename);
+        } catch (IOException e) {
+            printAndExit("Error occured while generating runs\n\n" + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates the run generator for the chosen strategy
+     * @param maxRecords Maximum number of records to hold at once
+     * @param memoryBudget Maximum number of bytes of records to hold at once
+     * @param input LineSource to get input from
+     * @return The run generator
+     * @throws IOException
+     */
+    private static RunGenerator makeRunGenerator (int maxRecords, long memoryBudget, LineSource input) throws IOException {
+        RecordSorter sorter = sortKernel.equals(mergeSort) ? new MergeRecordSorter() : new MultikeyRecordSorter();
+        if (strategy.equals(loadSortStrategy)) {
+            return new LoadSortRunGenerator(maxRecords, memoryBudget, input, sorter);
+        }
+        if (strategy.equals(twoHeapStrategy)) {
+            return new TwoHeapRunGenerator(maxRecords, memoryBudget, input);
+        }
+        return new ArenaRunGenerator(maxRecords, memoryBudget, input, sorter, adaptive);
+    }
+
+    /**
+     * Prints the number of runs produced. Runs written to stdout are piped on, so the count goes to stderr instead
+     * @param runs Number of runs produced
+     * @param outputFilename Path to the output file, - for stdout
+     */
+    private static void printRunCount (int runs, String outputFilename) {
+        (outputFilename.equals("-") ? System.err : System.out).println("Produced " + runs + " runs");
+    }
+
+    /**
+     * Prints how much run generation produced and how fast, on stderr so stdout only has the run count
+     * @param runs Number of runs produced
+     * @param records Number of records written
+     * @param bytes Number of record bytes written
+     * @param elapsedNanos Time taken
+     */
+    private static void printThroughput (int runs, long records, long bytes, long elapsedNanos) {
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        double mebibytes = bytes / (double) (1 << 20);
+        System.err.println(String.format("%s: %d runs, %d records, %.1f MiB in %.3f s (%.0f records/s, %.1f MiB/s)",
+                strategy, runs, records, mebibytes, seconds, records / seconds, mebibytes / seconds));
+    }
+
+    /**
+     * Creates the writer for runs in the chosen format
+     * @param stream Stream to write runs to
+     * @param manifest Manifest to describe the runs in, null for none
+     * @return The writer
+     */
+    private static RunWriter makeRunWriter (OutputStream stream, RunManifest manifest) {
+        BlockWriter blocks = format.equals(binaryFormat) ? new BlockWriter(stream, compress) : null;
+        return new RunWriter(stream, manifest, blocks);
+    }
+
+    /**
+     * Generates runs with the chosen strategy and the records kept in an off heap arena.
+     * Runs written to a file are described in a RunManifest next to it
+     * @param maxRecords Maximum number of records to hold at once
+     * @param memoryBudget Maximum number of bytes of records to hold at once
+     * @param iStream LineSource to get input from
+     * @param oStream OutputStream to write runs to
+     * @param outputFilename Path to the output file, - for stdout
+     */
+    private static void runMakeArenaRuns (int maxRecords, long memoryBudget, LineSource iStream, OutputStream oStream, String outputFilename) {
+        RunManifest manifest = outputFilename.equals("-") ? null : new RunManifest();
+        RunWriter output = writeArenaRuns(maxRecords, memoryBudget, iStream, makeRunWriter(oStream, manifest), oStream);
+        try {
+            // Manifest goes last so it is never older than the runs it describes
+            if (manifest != null) { manifest.write(outputFilename); }
+        } catch (IOException e) {
+            printAndExit("Error occured while generating runs\n\n" + e.getMessage());
+        }
+        printRunCount(output.getRuns(), outputFilename);
+    }
+
+    /**
+     * Writes the runs of the chosen strategy with the arena and closes the streams
+     * @param maxRecords Maximum number of records to hold at once
+     * @param memoryBudget Maximum number of bytes of records to hold at once
+     * @param iStream LineSource to get input from
+     * @param output RunWriter to write runs through
+     * @param oStream OutputStream the writer writes to, null if its streams belong to a router
+     * @return The writer the runs went through
+     */
+    private static RunWriter writeArenaRuns (int maxRecords, long memoryBudget, LineSource iStream, RunWriter output, OutputStream oStream) {
+        try {
+            long start = System.nanoTime();
+            output.writeHeader();
+            makeRunGenerator(maxRecords, memoryBudget, iStream).run(output);
+            output.close();
+            // Close files
+            iStream.close();
+            if (oStream != null) { oStream.close(); }
+            printThroughput(output.getRuns(), output.getRecords(), output.getBytes(), System.nanoTime() - start);
+            return output;
         } catch (IOException e) {
             printAndExit("Error occured while generating runs\n\n" + e.getMessage());
         }
+        return null;
     }
 
+    /**
+     * Generates runs on several parts of the input at once. The input file is split at
+     * line boundaries and each worker gets its own part, generator, arena and share of the memory.
+     * Workers write whole runs to a shared RunSink so the output is a normal runs file, and their
+     * manifests are joined in the same order
+     * @param maxRecords Maximum number of records to hold across all workers
+     * @param memoryBudget Maximum number of bytes of records to hold across all workers
+     * @param inputFilename Path to the input file
+     * @param outputFilename Path to the output file
+     */
+    private static void runMakeParallelRuns (int maxRecords, long memoryBudget, String inputFilename, String outputFilename) {
+        Path inputPath = Paths.get(inputFilename);
+        if (inputFilename.equals("-") || !Files.isRegularFile(inputPath)) {
+            printAndExit("Parallel run generation needs an input file that can be split");
+        }
+        try {
+            long start = System.nanoTime();
+            // Split the input into a part per worker, moving each split forward to the next line
+            long size = Files.size(inputPath);
+            long[] starts = new long[threads + 1];
+            for (int i = 0; i < threads; i++) {
+                starts[i] = MappedLineReader.findLineStart(inputPath, size * i / threads);
+            }
+            starts[threads] = size;
+
+            int workerRecords = Math.max(maxRecords / threads, 1);
+            long workerBudget = memoryBudget / threads;
+            RunSink sink = new RunSink(outputFilename, threads, byteBufferSize);
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            boolean keepManifest = !outputFilename.equals("-");
+            RunManifest[] manifests = new RunManifest[threads];
+            List<Future<RunWriter>> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                final int part = i;
+                workers.add(pool.submit(() -> {
+                    LineSource input = new MappedLineReader(inputPath, starts[part], starts[part + 1]);
+                    OutputStream stream = sink.openPart(part);
+                    manifests[part] = keepManifest ? new RunManifest() : null;
+                    RunWriter output = makeRunWriter(stream, manifests[part]);
+                    // Only the part at the start of the file has the header
+                    if (part == 0) { output.writeHeader(); }
+                    makeRunGenerator(workerRecords, workerBudget, input).run(output);
+                    output.close();
+                    input.close();
+                    sink.closePart(part, stream);
+                    return output;
+                }));
+            }
+
+            // Wait for every worker, then join their runs together
+            int runs = 0;
+            long records = 0;
+            long bytes = 0;
+            long position = 0;
+            RunManifest manifest = new RunManifest();
+            for (int i = 0; i < threads; i++) {
+                RunWriter output = workers.get(i).get();
+                runs += output.getRuns();
+                records += output.getRecords();
+                bytes += output.getBytes();
+                // Each part is appended after the ones before it
+                if (keepManifest) { manifest.addAll(manifests[i], position); }
+                position += output.getPosition();
+            }
+            pool.shutdown();
+            sink.finish();
+            if (keepManifest) { manifest.write(outputFilename); }
+            printRunCount(runs, outputFilename);
+            printThroughput(runs, records, bytes, System.nanoTime() - start);
+        } catch (IOException | InterruptedException e) {
+            printAndExit("Error occured while generating runs\n\n" + e.getMessage());
+        } catch (ExecutionException e) {
+            printAndExit("Error occured while generating runs\n\n" + e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Applies an option given on the command line
+     * @param arg The option
+     * @return False if it isn't a MakeRuns option
+     */
+    public static boolean parseOption (String arg) {
+        if (arg.equals("--numeric")) { numericKeys = true; }
+        else if (arg.equals("--arena")) { useArena = true; }
+        else if (arg.equals("--adaptive")) { adaptive = true; }
+        else if (arg.equals("--compress")) { compress = true; }
+        else if (arg.startsWith("--memory=")) { memoryBudget = getMemoryBudget(arg.substring("--memory=".length())); }
+        else if (arg.startsWith("--arity=")) { heapArity = getArity(arg.substring("--arity=".length())); }
+        else if (arg.startsWith("--threads=")) { threads = getThreads(arg.substring("--threads=".length())); }
+        else if (arg.startsWith("--strategy=")) { strategy = getStrategy(arg.substring("--strategy=".length())); }
+        else if (arg.startsWith("--sort=")) { sortKernel = getSortKernel(arg.substring("--sort=".length())); }
+        else if (arg.startsWith("--format=")) { format = getFormat(arg.substring("--format=".length())); }
+        else { return false; }
+        return true;
+    }
+
+    /**
+     * Generates runs for a merge in the same process, using the options applied with parseOption.
+     * Runs are always made with the arena on one thread
+     * @param inputFilename Path to the input file, - for stdin
+     * @param output Stream to write the runs to, closed once they are written
+     * @return Manifest of the runs written
+     */
+    public static RunManifest generateRuns (String inputFilename, OutputStream output) {
+        checkInProcessOptions();
+        RunManifest manifest = new RunManifest();
+        writeArenaRuns(maxHeapRecords, getInProcessBudget(), getInByteStream(inputFilename), makeRunWriter(output, manifest), output);
+        return manifest;
+    }
+
+    /**
+     * Generates runs for a merge in the same process like generateRuns, writing each run to the stream
+     * the router picks for it instead of into one runs file
+     * @param inputFilename Path to the input file, - for stdin
+     * @param router Router picking the stream for each run, which keeps its streams open
+     * @return Number of runs written
+     */
+    public static int generateRuns (String inputFilename, RunRouter router) {
+        checkInProcessOptions();
+        BlockWriter blocks = format.equals(binaryFormat) ? new BlockWriter(null, compress) : null;
+        return writeArenaRuns(maxHeapRecords, getInProcessBudget(), getInByteStream(inputFilename), new RunWriter(router, blocks), null).getRuns();
+    }
+
+    /**
+     * Checks the options work for runs generated for a merge in the same process
+     */
+    private static void checkInProcessOptions () {
+        if (numericKeys) { printAndExit("Numeric keys can't be used with the arena"); }
+        if (threads > 1) { printAndExit("Runs for a merge in the same process are generated on one thread"); }
+        if (compress && !format.equals(binaryFormat)) { printAndExit("Compression needs --format=binary"); }
+    }
+
+    /**
+     * Gets the memory budget for runs generated for a merge in the same process
+     * @return Maximum number of bytes of records to hold at once
+     */
+    private static long getInProcessBudget () { return memoryBudget > 0 ? memoryBudget : getDefaultMemoryBudget(); }
+
+    /**
+     * Checks if runs are generated in the binary TapeFormat
+     * @return True for binary runs, false for text
+     */
+    public static boolean isBinaryFormat () { return format.equals(binaryFormat); }
+
+    /**
+     * Gets the number of threads runs are generated on
+     * @return Number of replacement selection workers
+     */
+    public static int getThreadCount () { return threads; }
+
+    /**
+     * Checks if the blocks of binary runs are compressed
+     * @return True if blocks are compressed
+     */
+    public static boolean isCompressed () { return compress; }
+
     public static void main (String[] args) {
+        // Split options from positional arguments
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (parseOption(arg)) { continue; }
+            if (arg.startsWith("--")) { printAndExit(String.format("Unknown option `%s`\n%s", arg, getUsage())); }
+            positional.add(arg);
+        }
         // Check args
-        if (args.length != 3) { printAndExit(getUsage()); }
-        // Get size of heap to use for runs
-        int runSize = getHeapSize(args[0]);
+        if (positional.size() != 2 && positional.size() != 3) { printAndExit(getUsage()); }
+        if (numericKeys && useArena) { printAndExit("Numeric keys can't be used with the arena"); }
+        if (compress && !format.equals(binaryFormat)) { printAndExit("Compression needs --format=binary"); }
         // Get input/output files
-        String inputFilename = args[1];
-        String outputFilename = args[2];
+        String inputFilename = positional.get(positional.size() - 2);
+        String outputFilename = positional.get(positional.size() - 1);
+        if (positional.size() == 2 || useArena || adaptive || threads > 1 || !strategy.equals(replaceStrategy) || format.equals(binaryFormat)) {
+            // Work on raw bytes in the arena. Without a heap size the heap is filled by bytes instead,
+            // which needs the arena to know record sizes
+            if (numericKeys) { printAndExit("Numeric keys need a heap size and can't be used with the arena, threads or other strategies"); }
+            if (positional.size() == 3 && memoryBudget > 0) { printAndExit("Use either a heap size or --memory, not both"); }
+            int maxRecords = positional.size() == 3 ? getHeapSize(positional.get(0)) : maxHeapRecords;
+            long budget = positional.size() == 3 ? Long.MAX_VALUE : memoryBudget > 0 ? memoryBudget : getDefaultMemoryBudget();
+            if (threads > 1) {
+                runMakeParallelRuns(maxRecords, budget, inputFilename, outputFilename);
+            } else {
+                runMakeArenaRuns(maxRecords, budget, getInByteStream(inputFilename), getOutByteStream(outputFilename), outputFilename);
+            }
+            return;
+        }
+        if (memoryBudget > 0) { printAndExit("Use either a heap size or --memory, not both"); }
+        // Text runs don't get a manifest, so make sure an old one can't be mistaken for theirs
+        if (!outputFilename.equals("-")) {
+            try { Files.deleteIfExists(RunManifest.getPath(outputFilename)); }
+            catch (IOException e) { printAndExit(String.format("Couldn't remove old manifest for `%s`", outputFilename)); }
+        }
+        // Get size of heap to use for runs
+        int runSize = getHeapSize(positional.get(0));
         // Open files for reading and writing
         BufferedReader inStream = getInStream(inputFilename);
         BufferedWriter outStream = getOutStream(outputFilename);
         // Run replacement selection algorithm to generate runs
-        runMakeRuns(runSize, inStream, outStream);
+        if (numericKeys) {
+            runMakeNumericRuns(runSize, inStream, outStream, outputFilename);
+        } else {
+            runMakeRuns(runSize, inStream, outStream, outputFilename);
+        }
     }
 }
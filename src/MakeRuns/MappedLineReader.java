@@ -0,0 +1,167 @@
+/**
+ * Memory mapped line reader
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package MakeRuns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Splits a file into lines by scanning the mapped file for new lines directly, without copying or decoding it.
+ * The file is mapped a window at a time since a single mapping is limited to 2GB
+ */
+class MappedLineReader implements LineSource {
+    // Size of each mapped window of the file
+    final static private long windowSize = 1L << 28;
+    // Every byte set to \n, and masks for finding a zero byte in a word
+    final static private long newlines = 0x0A0A0A0A0A0A0A0AL;
+    final static private long lowBits = 0x7F7F7F7F7F7F7F7FL;
+
+    private final FileChannel channel;
+    // Offset in the file where the input ends
+    private final long fileSize;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private int windowLength;
+    // Offset in the window of the first byte that isn't part of a returned line
+    private int position = 0;
+
+    private int lineOffset;
+    private int lineLength;
+
+    MappedLineReader (Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.fileSize = channel.size();
+        map(0, windowSize);
+    }
+
+    /**
+     * Creates a reader over part of a file
+     * @param path File to read
+     * @param start Offset of the first byte to read, should be the start of a line
+     * @param end Offset after the last byte to read, should be the start of a line
+     * @throws IOException
+     */
+    MappedLineReader (Path path, long start, long end) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.fileSize = Math.min(end, channel.size());
+        map(Math.min(start, fileSize), windowSize);
+    }
+
+    /**
+     * Finds the start of the first line at or after an offset in a file
+     * @param path File to search
+     * @param offset Offset to start from
+     * @return Offset of the start of the line, or the file size if there are no more lines
+     * @throws IOException
+     */
+    static long findLineStart (Path path, long offset) throws IOException {
+        if (offset <= 0) { return 0; }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            // The byte before the offset tells us if the offset is already at the start of a line
+            long position = offset - 1;
+            while (position < channel.size()) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read <= 0) { break; }
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) == '\n') { return position + i + 1; }
+                }
+                position += read;
+            }
+            return channel.size();
+        }
+    }
+
+    /**
+     * Maps a window of the file
+     * @param start Offset in the file to start the window at
+     * @param size Size of the window, cut short at the end of the file
+     * @throws IOException
+     */
+    private void map (long start, long size) throws IOException {
+        windowStart = start;
+        windowLength = (int) Math.min(size, fileSize - start);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, windowLength);
+        position = 0;
+    }
+
+    /**
+     * Finds the next new line in the window, checking a word at a time
+     * @param from Offset to start looking from
+     * @return Offset of the new line, -1 if there isn't one before the end of the window
+     */
+    private int findNewline (int from) {
+        int i = from;
+        for (; i + 8 <= windowLength; i += 8) {
+            // Bytes that equal \n become zero, then every zero byte gets its high bit set.
+            // Adding to the low seven bits never carries into the next byte, so only real zeros are found
+            long word = window.getLong(i) ^ newlines;
+            long zeros = ~(((word & lowBits) + lowBits) | word | lowBits);
+            if (zeros != 0) {
+                // Words are read big endian, so the first byte is the most significant
+                return i + Long.numberOfLeadingZeros(zeros) / 8;
+            }
+        }
+        for (; i < windowLength; i++) {
+            if (window.get(i) == '\n') { return i; }
+        }
+        return -1;
+    }
+
+    /**
+     * Sets the current line, dropping a \r before the line ending
+     * @param from Offset of the first byte of the line
+     * @param to Offset of the line ending
+     */
+    private void setLine (int from, int to) {
+        if (to > from && window.get(to - 1) == '\r') { to--; }
+        lineOffset = from;
+        lineLength = to - from;
+    }
+
+    @Override
+    public boolean next () throws IOException {
+        while (true) {
+            int newline = findNewline(position);
+            if (newline >= 0) {
+                setLine(position, newline);
+                position = newline + 1;
+                return true;
+            }
+            if (windowStart + windowLength >= fileSize) {
+                // Last line with no line ending
+                if (position == windowLength) { return false; }
+                setLine(position, windowLength);
+                position = windowLength;
+                return true;
+            }
+            // Line runs past the window, map the next window from the start of the line
+            long size = windowSize;
+            if (position == 0) {
+                // Line doesn't fit in a window at all, use a bigger one
+                if (windowLength == Integer.MAX_VALUE) { throw new IOException("Line longer than 2GB"); }
+                size = Math.min((long) windowLength * 2, Integer.MAX_VALUE);
+            }
+            map(windowStart + position, size);
+        }
+    }
+
+    @Override
+    public int getLength () { return lineLength; }
+
+    @Override
+    public long addTo (RecordArena arena) { return arena.add(window, lineOffset, lineLength); }
+
+    @Override
+    public void close () throws IOException { channel.close(); }
+}
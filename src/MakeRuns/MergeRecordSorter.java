@@ -0,0 +1,144 @@
+/**
+ * Parallel merge sort for records held in a RecordArena
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package MakeRuns;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Sorts record handles along with their key prefixes using a merge sort on the fork/join pool.
+ * Prefixes are compared first and the arena is only read when two prefixes tie.
+ * The sort ping-pongs between the arrays and a scratch copy so each level merges once without copying back
+ */
+class MergeRecordSorter implements RecordSorter {
+    // Ranges smaller than this are sorted on the current thread
+    final static private int parallelThreshold = 1 << 13;
+    // Ranges smaller than this are insertion sorted
+    final static private int insertionThreshold = 24;
+
+    private long[] scratchPrefixes = new long[0];
+    private long[] scratchHandles = new long[0];
+
+    @Override
+    public void sort (RecordArena arena, long[] prefixes, long[] handles, int size) {
+        if (size < 2) { return; }
+        if (scratchPrefixes.length < size) {
+            scratchPrefixes = new long[size];
+            scratchHandles = new long[size];
+        }
+        // Both copies start out the same, each level sorts its halves in one copy and merges into the other
+        System.arraycopy(prefixes, 0, scratchPrefixes, 0, size);
+        System.arraycopy(handles, 0, scratchHandles, 0, size);
+        SortTask task = new SortTask(arena, scratchPrefixes, scratchHandles, prefixes, handles, 0, size);
+        if (size < parallelThreshold) {
+            task.compute();
+        } else {
+            ForkJoinPool.commonPool().invoke(task);
+        }
+    }
+
+    /**
+     * Sorts a range into the destination arrays, using the source arrays as scratch space
+     */
+    private static class SortTask extends RecursiveAction {
+        // Tasks are never serialized, the id only keeps RecursiveAction's Serializable happy
+        private static final long serialVersionUID = 1L;
+
+        private final RecordArena arena;
+        private final long[] sourcePrefixes;
+        private final long[] sourceHandles;
+        private final long[] destPrefixes;
+        private final long[] destHandles;
+        private final int from;
+        private final int to;
+
+        SortTask (RecordArena arena, long[] sourcePrefixes, long[] sourceHandles, long[] destPrefixes, long[] destHandles, int from, int to) {
+            this.arena = arena;
+            this.sourcePrefixes = sourcePrefixes;
+            this.sourceHandles = sourceHandles;
+            this.destPrefixes = destPrefixes;
+            this.destHandles = destHandles;
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * Compares two records, prefixes first and then the full records
+         * @param prefixA Prefix of the first record
+         * @param handleA Handle of the first record
+         * @param prefixB Prefix of the second record
+         * @param handleB Handle of the second record
+         * @return Comparison of the first record against the second
+         */
+        private int compare (long prefixA, long handleA, long prefixB, long handleB) {
+            if (prefixA != prefixB) { return prefixA < prefixB ? -1 : 1; }
+            return arena.compare(handleA, handleB);
+        }
+
+        @Override
+        protected void compute () {
+            if (to - from < insertionThreshold) {
+                insertionSort();
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            // Sort each half into the source so the halves can be merged into the destination
+            SortTask left = new SortTask(arena, destPrefixes, destHandles, sourcePrefixes, sourceHandles, from, middle);
+            SortTask right = new SortTask(arena, destPrefixes, destHandles, sourcePrefixes, sourceHandles, middle, to);
+            if (to - from < parallelThreshold) {
+                left.compute();
+                right.compute();
+            } else {
+                invokeAll(left, right);
+            }
+            merge(middle);
+        }
+
+        /**
+         * Insertion sorts the range in the destination arrays
+         */
+        private void insertionSort () {
+            for (int i = from + 1; i < to; i++) {
+                long prefix = destPrefixes[i];
+                long handle = destHandles[i];
+                int j = i - 1;
+                while (j >= from && compare(destPrefixes[j], destHandles[j], prefix, handle) > 0) {
+                    destPrefixes[j + 1] = destPrefixes[j];
+                    destHandles[j + 1] = destHandles[j];
+                    j--;
+                }
+                destPrefixes[j + 1] = prefix;
+                destHandles[j + 1] = handle;
+            }
+        }
+
+        /**
+         * Merges the sorted halves of the source arrays into the destination arrays
+         * @param middle Start of the second half
+         */
+        private void merge (int middle) {
+            // Halves already in order, just copy them across
+            if (compare(sourcePrefixes[middle - 1], sourceHandles[middle - 1], sourcePrefixes[middle], sourceHandles[middle]) <= 0) {
+                System.arraycopy(sourcePrefixes, from, destPrefixes, from, to - from);
+                System.arraycopy(sourceHandles, from, destHandles, from, to - from);
+                return;
+            }
+            int left = from;
+            int right = middle;
+            for (int i = from; i < to; i++) {
+                if (right >= to || (left < middle && compare(sourcePrefixes[left], sourceHandles[left], sourcePrefixes[right], sourceHandles[right]) <= 0)) {
+                    destPrefixes[i] = sourcePrefixes[left];
+                    destHandles[i] = sourceHandles[left++];
+                } else {
+                    destPrefixes[i] = sourcePrefixes[right];
+                    destHandles[i] = sourceHandles[right++];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * Multikey quicksort for records held in a RecordArena
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package MakeRuns;
+
+import Heap.KeyPrefix;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Sorts records with a three way string quicksort (Bentley and Sedgewick) that works a word of eight
+ * bytes at a time instead of a character at a time.
+ * Records are partitioned on the word at the current depth into less, equal and greater. Only the equal
+ * part moves on to the next word, so bytes shared by a group of records are looked at once for the group
+ * instead of again in every comparison. The words of the current depth are cached in the prefix array,
+ * which starts out holding the first word of each record.
+ * The three parts are independent, so large ones are sorted on the fork/join pool. The largest part is
+ * sorted last without recursing, so records with long shared prefixes don't run the stack out
+ */
+class MultikeyRecordSorter implements RecordSorter {
+    // Ranges smaller than this are sorted on the current thread
+    final static private int parallelThreshold = 1 << 13;
+    // Ranges smaller than this are insertion sorted with full comparisons
+    final static private int insertionThreshold = 16;
+
+    @Override
+    public void sort (RecordArena arena, long[] prefixes, long[] handles, int size) {
+        if (size < 2) { return; }
+        SortTask task = new SortTask(arena, prefixes, handles, 0, size, 0);
+        if (size < parallelThreshold) {
+            task.compute();
+        } else {
+            ForkJoinPool.commonPool().invoke(task);
+        }
+    }
+
+    /**
+     * Sorts a range of records that are equal before the word at the given depth
+     */
+    private static class SortTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RecordArena arena;
+        private final long[] words;
+        private final long[] handles;
+        private final int from;
+        private final int to;
+        private final int depth;
+
+        SortTask (RecordArena arena, long[] words, long[] handles, int from, int to, int depth) {
+            this.arena = arena;
+            this.words = words;
+            this.handles = handles;
+            this.from = from;
+            this.to = to;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute () { sort(from, to, depth); }
+
+        /**
+         * Swaps two records
+         * @param a Index of the first record
+         * @param b Index of the second record
+         */
+        private void swap (int a, int b) {
+            long word = words[a];
+            words[a] = words[b];
+            words[b] = word;
+            long handle = handles[a];
+            handles[a] = handles[b];
+            handles[b] = handle;
+        }
+
+        /**
+         * Picks the median of the first, middle and last words of a range
+         * @param low Start of the range
+         * @param high End of the range, exclusive
+         * @return The pivot word
+         */
+        private long getPivot (int low, int high) {
+            long a = words[low];
+            long b = words[(low + high) >>> 1];
+            long c = words[high - 1];
+            if (a < b) { return b < c ? b : a < c ? c : a; }
+            return a < c ? a : b < c ? c : b;
+        }
+
+        /**
+         * Sorts a range of records that are equal before the word at the given depth
+         * @param low Start of the range
+         * @param high End of the range, exclusive
+         * @param level Index of the word the range is partitioned on
+         */
+        private void sort (int low, int high, int level) {
+            List<SortTask> forked = null;
+            // Sort the two smaller parts first and keep going on the largest instead of recursing, so the stack
+            // stays within log n frames even when records share long runs of bytes
+            while (high - low > 1) {
+                if (high - low < insertionThreshold) {
+                    insertionSort(low, high);
+                    break;
+                }
+                // Three way partition: [low, lt) less, [lt, gt) equal, [gt, high) greater
+                long pivot = getPivot(low, high);
+                int lt = low;
+                int gt = high;
+                int i = low;
+                while (i < gt) {
+                    long word = words[i];
+                    if (word < pivot) { swap(lt++, i++); }
+                    else if (word > pivot) { swap(i, --gt); }
+                    else { i++; }
+                }
+                int rest = prepareEqual(lt, gt, level);
+                int less = lt - low;
+                int equal = gt - rest;
+                int greater = high - gt;
+                if (equal >= less && equal >= greater) {
+                    forked = sortPart(low, lt, level, forked);
+                    forked = sortPart(gt, high, level, forked);
+                    low = rest;
+                    high = gt;
+                    level++;
+                } else if (less >= greater) {
+                    forked = sortPart(rest, gt, level + 1, forked);
+                    forked = sortPart(gt, high, level, forked);
+                    high = lt;
+                } else {
+                    forked = sortPart(low, lt, level, forked);
+                    forked = sortPart(rest, gt, level + 1, forked);
+                    low = gt;
+                }
+            }
+            if (forked != null) {
+                for (SortTask task : forked) { task.join(); }
+            }
+        }
+
+        /**
+         * Sorts one part of a partitioned range, on the fork/join pool if it is large
+         * @param low Start of the part
+         * @param high End of the part, exclusive
+         * @param level Index of the word the part is partitioned on
+         * @param forked Tasks forked so far, or null if there are none
+         * @return Tasks forked so far, including this part if it was forked
+         */
+        private List<SortTask> sortPart (int low, int high, int level, List<SortTask> forked) {
+            if (high - low < parallelThreshold) {
+                sort(low, high, level);
+                return forked;
+            }
+            SortTask task = new SortTask(arena, words, handles, low, high, level);
+            task.fork();
+            if (forked == null) { forked = new ArrayList<>(); }
+            forked.add(task);
+            return forked;
+        }
+
+        /**
+         * Moves the records of an equal range that end within the current word to its front in length
+         * order, and loads the next word of the others. A record that ends within the word is a prefix of
+         * every longer record with the same word, since the word is padded with zeros
+         * @param low Start of the equal range
+         * @param high End of the equal range, exclusive
+         * @param level Index of the word the range is equal on
+         * @return Start of the records that still need sorting on the next word
+         */
+        private int prepareEqual (int low, int high, int level) {
+            long end = (long) (level + 1) * KeyPrefix.prefixLength;
+            int next = low;
+            for (int i = low; i < high; i++) {
+                if (arena.getLength(handles[i]) <= end) { swap(next++, i); }
+            }
+            // Ended records only differ by trailing zeros, so they are nearly always the same length already
+            for (int i = low + 1; i < next; i++) {
+                long handle = handles[i];
+                int length = arena.getLength(handle);
+                int j = i - 1;
+                while (j >= low && arena.getLength(handles[j]) > length) {
+                    handles[j + 1] = handles[j];
+                    j--;
+                }
+                handles[j + 1] = handle;
+            }
+            for (int i = next; i < high; i++) { words[i] = arena.getWord(handles[i], level + 1); }
+            return next;
+        }
+
+        /**
+         * Insertion sorts a small range comparing whole records
+         * @param low Start of the range
+         * @param high End of the range, exclusive
+         */
+        private void insertionSort (int low, int high) {
+            for (int i = low + 1; i < high; i++) {
+                long word = words[i];
+                long handle = handles[i];
+                int j = i - 1;
+                while (j >= low && arena.compare(handles[j], handle) > 0) {
+                    words[j + 1] = words[j];
+                    handles[j + 1] = handles[j];
+                    j--;
+                }
+                words[j + 1] = word;
+                handles[j + 1] = handle;
+            }
+        }
+    }
+}
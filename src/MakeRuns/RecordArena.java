@@ -0,0 +1,260 @@
+/**
+ * Off heap storage for records
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package MakeRuns;
+
+import Heap.KeyPrefix;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Stores raw record bytes in large direct buffers so the garbage collector only sees a handful of blocks.
+ * Records are referred to by a long handle holding the block index in the high half and the offset in the low half.
+ * Each record is stored as a four byte length followed by its bytes.
+ * Blocks are returned to a pool once every record in them has been released
+ */
+class RecordArena {
+    // Size of the length stored in front of each record
+    final static private int headerSize = 4;
+
+    private final int blockSize;
+    private ByteBuffer[] blocks = new ByteBuffer[16];
+    private int[] liveRecords = new int[16];
+    private int numBlocks = 0;
+    private int[] freeBlocks = new int[16];
+    private int numFreeBlocks = 0;
+    private int currentBlock = -1;
+    private byte[] scratch = new byte[256];
+
+    RecordArena (int blockSize) { this.blockSize = blockSize; }
+
+    /**
+     * Gets the block index of a handle
+     * @param handle Record handle
+     * @return Index of the block holding the record
+     */
+    private static int getBlock (long handle) { return (int) (handle >>> 32); }
+
+    /**
+     * Gets the offset of a handle
+     * @param handle Record handle
+     * @return Offset of the record within its block
+     */
+    private static int getOffset (long handle) { return (int) handle; }
+
+    /**
+     * Gets the number of bytes a record of the given length takes up in the arena
+     * @param length Length of the record
+     * @return Number of bytes used
+     */
+    static int getStoredSize (int length) { return length + headerSize; }
+
+    /**
+     * Gets a block with space for the record, moving to a new block if the current one is full
+     * @param size Number of bytes needed
+     * @return Index of the block to write to
+     */
+    private int getBlockWithSpace (int size) {
+        if (currentBlock >= 0 && blocks[currentBlock].remaining() >= size) { return currentBlock; }
+
+        // Current block is full, release it if everything in it has already been written out
+        int previous = currentBlock;
+        currentBlock = -1;
+        if (previous >= 0 && liveRecords[previous] == 0) { freeBlock(previous); }
+
+        if (size > blockSize) {
+            // Record doesn't fit in a pooled block, give it a block of its own
+            currentBlock = addBlock(ByteBuffer.allocateDirect(size));
+        } else if (numFreeBlocks > 0) {
+            currentBlock = freeBlocks[--numFreeBlocks];
+        } else {
+            currentBlock = addBlock(ByteBuffer.allocateDirect(blockSize));
+        }
+        return currentBlock;
+    }
+
+    /**
+     * Adds a block to the arena, reusing an empty slot in the block list if there is one
+     * @param block Block to add
+     * @return Index of the block
+     */
+    private int addBlock (ByteBuffer block) {
+        for (int i = 0; i < numBlocks; i++) {
+            if (blocks[i] == null) {
+                blocks[i] = block;
+                liveRecords[i] = 0;
+                return i;
+            }
+        }
+        if (numBlocks == blocks.length) {
+            blocks = Arrays.copyOf(blocks, numBlocks * 2);
+            liveRecords = Arrays.copyOf(liveRecords, numBlocks * 2);
+            freeBlocks = Arrays.copyOf(freeBlocks, numBlocks * 2);
+        }
+        blocks[numBlocks] = block;
+        liveRecords[numBlocks] = 0;
+        return numBlocks++;
+    }
+
+    /**
+     * Returns an empty block to the pool, or drops it if it is an oversized block
+     * @param index Index of the block
+     */
+    private void freeBlock (int index) {
+        ByteBuffer block = blocks[index];
+        if (block.capacity() != blockSize) {
+            // Oversized blocks aren't reused, let the collector have them
+            blocks[index] = null;
+            return;
+        }
+        block.clear();
+        freeBlocks[numFreeBlocks++] = index;
+    }
+
+    /**
+     * Copies a record into the arena
+     * @param source Array holding the record
+     * @param offset Offset of the record in the array
+     * @param length Length of the record
+     * @return Handle for the record
+     */
+    long add (byte[] source, int offset, int length) {
+        int index = getBlockWithSpace(getStoredSize(length));
+        ByteBuffer block = blocks[index];
+        int recordOffset = block.position();
+        block.putInt(length);
+        block.put(source, offset, length);
+        liveRecords[index]++;
+        return ((long) index << 32) | recordOffset;
+    }
+
+    /**
+     * Copies a record into the arena from a buffer
+     * @param source Buffer holding the record, its position and limit are restored afterwards
+     * @param offset Offset of the record in the buffer
+     * @param length Length of the record
+     * @return Handle for the record
+     */
+    long add (ByteBuffer source, int offset, int length) {
+        int index = getBlockWithSpace(getStoredSize(length));
+        ByteBuffer block = blocks[index];
+        int recordOffset = block.position();
+        block.putInt(length);
+        // Bulk put copies between the buffers without going through an array
+        int position = source.position();
+        int limit = source.limit();
+        source.limit(offset + length);
+        source.position(offset);
+        block.put(source);
+        source.limit(limit);
+        source.position(position);
+        liveRecords[index]++;
+        return ((long) index << 32) | recordOffset;
+    }
+
+    /**
+     * Releases a record once it has been written out. The block is reused once all its records are released
+     * @param handle Handle of the record
+     */
+    void release (long handle) {
+        int index = getBlock(handle);
+        if (--liveRecords[index] == 0 && index != currentBlock) { freeBlock(index); }
+    }
+
+    /**
+     * Gets the length of a record
+     * @param handle Handle of the record
+     * @return Length of the record in bytes
+     */
+    int getLength (long handle) { return blocks[getBlock(handle)].getInt(getOffset(handle)); }
+
+    /**
+     * Gets the normalized key prefix of a record, see Heap.KeyPrefix
+     * @param handle Handle of the record
+     * @return The prefix
+     */
+    long getPrefix (long handle) { return getWord(handle, 0); }
+
+    /**
+     * Gets a word of a record normalized the same way as its key prefix, so words compare as signed
+     * longs in the same order as their bytes. Bytes past the end of the record are 0
+     * @param handle Handle of the record
+     * @param index Index of the word, word i starts at byte 8 * i
+     * @return The normalized word
+     */
+    long getWord (long handle, int index) {
+        ByteBuffer block = blocks[getBlock(handle)];
+        int start = getOffset(handle) + headerSize + index * KeyPrefix.prefixLength;
+        int remaining = block.getInt(getOffset(handle)) - index * KeyPrefix.prefixLength;
+        // Whole words can be read directly, the blocks are big endian
+        if (remaining >= KeyPrefix.prefixLength) { return block.getLong(start) ^ Long.MIN_VALUE; }
+        return KeyPrefix.ofBytes(block, start, Math.max(remaining, 0));
+    }
+
+    /**
+     * Compares two records byte by byte as unsigned values, which for UTF-8 is code point order
+     * @param a Handle of the first record
+     * @param b Handle of the second record
+     * @return Comparison of the first record against the second
+     */
+    int compare (long a, long b) {
+        ByteBuffer blockA = blocks[getBlock(a)];
+        ByteBuffer blockB = blocks[getBlock(b)];
+        int lengthA = blockA.getInt(getOffset(a));
+        int lengthB = blockB.getInt(getOffset(b));
+        int startA = getOffset(a) + headerSize;
+        int startB = getOffset(b) + headerSize;
+        int length = Math.min(lengthA, lengthB);
+
+        // Compare a word at a time, big endian words compare the same as their bytes
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long wordA = blockA.getLong(startA + i);
+            long wordB = blockB.getLong(startB + i);
+            if (wordA != wordB) { return Long.compareUnsigned(wordA, wordB); }
+        }
+        for (; i < length; i++) {
+            int byteA = blockA.get(startA + i) & 0xFF;
+            int byteB = blockB.get(startB + i) & 0xFF;
+            if (byteA != byteB) { return byteA - byteB; }
+        }
+        return Integer.compare(lengthA, lengthB);
+    }
+
+    /**
+     * Copies the bytes of a record into an array
+     * @param handle Handle of the record
+     * @param destination Array to copy into, must have room for the record after the offset
+     * @param offset Offset in the array to copy to
+     * @return Length of the record
+     */
+    int copyTo (long handle, byte[] destination, int offset) {
+        ByteBuffer block = blocks[getBlock(handle)];
+        int length = block.getInt(getOffset(handle));
+        // Block position is only used for appending to the current block, so put it back afterwards
+        int position = block.position();
+        block.position(getOffset(handle) + headerSize);
+        block.get(destination, offset, length);
+        block.position(position);
+        return length;
+    }
+
+    /**
+     * Writes the bytes of a record to a stream
+     * @param handle Handle of the record
+     * @param output Stream to write to
+     * @throws IOException
+     */
+    void writeTo (long handle, OutputStream output) throws IOException {
+        int length = getLength(handle);
+        if (scratch.length < length) { scratch = new byte[Math.max(length, scratch.length * 2)]; }
+        output.write(scratch, 0, copyTo(handle, scratch, 0));
+    }
+}
@@ -0,0 +1,22 @@
+/**
+ * In memory sorting kernel for records held in a RecordArena
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package MakeRuns;
+
+/**
+ * Sorts record handles along with their key prefixes into unsigned byte order
+ */
+interface RecordSorter {
+    /**
+     * Sorts the first size records of the arrays
+     * @param arena Arena holding the records
+     * @param prefixes Key prefix of each record, see RecordArena.getPrefix. May be overwritten while sorting
+     * @param handles Handle of each record, parallel to the prefixes
+     * @param size Number of records to sort
+     */
+    void sort (RecordArena arena, long[] prefixes, long[] handles, int size);
+}
@@ -0,0 +1,22 @@
+/**
+ * Strategy for generating runs
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package MakeRuns;
+
+import java.io.IOException;
+
+/**
+ * Turns all of its input into sorted runs
+ */
+interface RunGenerator {
+    /**
+     * Generates runs from all of the input
+     * @param output Writer to write the runs with
+     * @throws IOException
+     */
+    void run (RunWriter output) throws IOException;
+}
@@ -0,0 +1,189 @@
+/**
+ * Sidecar manifest describing the runs in a runs file
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package MakeRuns;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lists every run in a runs file with its byte offset, byte length, record count and smallest and
+ * largest record, so later stages don't have to scan the runs file to find out what is in it.
+ * Stored next to the runs file with .manifest added to its name
+ */
+public class RunManifest {
+    // Identifies a manifest file, "RUNS" in ASCII
+    final static private int magic = 0x52554E53;
+    final static private int version = 1;
+    final static public String suffix = ".manifest";
+
+    /**
+     * Description of a single run
+     */
+    public static class Run {
+        private final long offset;
+        private final long length;
+        private final long records;
+        private final byte[] minKey;
+        private final byte[] maxKey;
+
+        Run (long offset, long length, long records, byte[] minKey, byte[] maxKey) {
+            this.offset = offset;
+            this.length = length;
+            this.records = records;
+            this.minKey = minKey;
+            this.maxKey = maxKey;
+        }
+
+        /**
+         * Gets the offset of the run in the runs file
+         * @return Offset in bytes
+         */
+        public long getOffset () { return offset; }
+
+        /**
+         * Gets the length of the run in the runs file, including the empty line that ends it
+         * @return Length in bytes
+         */
+        public long getLength () { return length; }
+
+        /**
+         * Gets the number of records in the run
+         * @return Number of records
+         */
+        public long getRecords () { return records; }
+
+        /**
+         * Gets the first record of the run, without the - prefix
+         * @return Bytes of the smallest record
+         */
+        public byte[] getMinKey () { return minKey; }
+
+        /**
+         * Gets the last record of the run, without the - prefix
+         * @return Bytes of the largest record
+         */
+        public byte[] getMaxKey () { return maxKey; }
+    }
+
+    private final List<Run> runs = new ArrayList<>();
+
+    /**
+     * Gets the number of runs
+     * @return Number of runs
+     */
+    public int getNumRuns () { return runs.size(); }
+
+    /**
+     * Gets a run
+     * @param index Index of the run in the runs file
+     * @return The run
+     */
+    public Run getRun (int index) { return runs.get(index); }
+
+    /**
+     * Gets the length of the runs file the manifest describes
+     * @return Length in bytes
+     */
+    public long getTotalLength () {
+        if (runs.isEmpty()) { return 0; }
+        Run last = runs.get(runs.size() - 1);
+        return last.getOffset() + last.getLength();
+    }
+
+    /**
+     * Adds a run to the end of the manifest
+     * @param offset Offset of the run
+     * @param length Length of the run
+     * @param records Number of records in the run
+     * @param minKey Smallest record
+     * @param maxKey Largest record
+     */
+    void add (long offset, long length, long records, byte[] minKey, byte[] maxKey) {
+        runs.add(new Run(offset, length, records, minKey, maxKey));
+    }
+
+    /**
+     * Adds the runs of another manifest, for when its runs file is appended to this one
+     * @param other Manifest to add
+     * @param shift Offset its runs file starts at in this one
+     */
+    void addAll (RunManifest other, long shift) {
+        for (Run run : other.runs) {
+            add(run.getOffset() + shift, run.getLength(), run.getRecords(), run.getMinKey(), run.getMaxKey());
+        }
+    }
+
+    /**
+     * Gets the path of the manifest for a runs file
+     * @param runsFilename Path to the runs file
+     * @return Path to the manifest
+     */
+    public static Path getPath (String runsFilename) { return Paths.get(runsFilename + suffix); }
+
+    /**
+     * Writes the manifest next to its runs file
+     * @param runsFilename Path to the runs file
+     * @throws IOException
+     */
+    void write (String runsFilename) throws IOException {
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(getPath(runsFilename))))) {
+            output.writeInt(magic);
+            output.writeInt(version);
+            output.writeInt(runs.size());
+            for (Run run : runs) {
+                output.writeLong(run.getOffset());
+                output.writeLong(run.getLength());
+                output.writeLong(run.getRecords());
+                output.writeInt(run.getMinKey().length);
+                output.write(run.getMinKey());
+                output.writeInt(run.getMaxKey().length);
+                output.write(run.getMaxKey());
+            }
+        }
+    }
+
+    /**
+     * Reads the manifest of a runs file. A manifest that is older than the runs file or doesn't cover
+     * exactly the whole file is out of date and ignored
+     * @param runsFilename Path to the runs file
+     * @return The manifest, or null if there is no up to date manifest
+     * @throws IOException If the manifest exists but can't be read
+     */
+    public static RunManifest read (String runsFilename) throws IOException {
+        Path path = getPath(runsFilename);
+        Path runsPath = Paths.get(runsFilename);
+        if (!Files.isRegularFile(path) || !Files.isRegularFile(runsPath)) { return null; }
+        if (Files.getLastModifiedTime(path).compareTo(Files.getLastModifiedTime(runsPath)) < 0) { return null; }
+
+        RunManifest manifest = new RunManifest();
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (input.readInt() != magic || input.readInt() != version) { return null; }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                long offset = input.readLong();
+                long length = input.readLong();
+                long records = input.readLong();
+                byte[] minKey = new byte[input.readInt()];
+                input.readFully(minKey);
+                byte[] maxKey = new byte[input.readInt()];
+                input.readFully(maxKey);
+                manifest.add(offset, length, records, minKey, maxKey);
+            }
+        }
+        if (manifest.getTotalLength() != Files.size(runsPath)) { return null; }
+        return manifest;
+    }
+}
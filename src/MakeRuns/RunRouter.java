@@ -0,0 +1,26 @@
+/**
+ * Picks where each run is written
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package MakeRuns;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Spreads runs over several streams, such as the temporary files of a polyphase merge in the same process,
+ * so runs are written where they will be merged instead of into one runs file. Streams given out this way
+ * have no header, like the temporary files, and belong to the router, which flushes and closes them
+ */
+public interface RunRouter {
+    /**
+     * Picks the stream for the next run. Only called once a run is being written, so a run is never
+     * asked for that isn't made
+     * @return Stream to write the whole run to
+     * @throws IOException
+     */
+    OutputStream nextRun () throws IOException;
+}
@@ -0,0 +1,110 @@
+/**
+ * Shared output for runs made by several workers
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package MakeRuns;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Collects runs from parallel workers into one runs file that PolyMerge can read.
+ * Each worker writes whole runs to its own part, so runs never interleave. The first part goes
+ * straight to the output and the rest are spilled to temporary files that are appended in order
+ * when every worker has finished
+ */
+class RunSink {
+    private final String outputFilename;
+    private final int bufferSize;
+    private final Path[] spillFiles;
+
+    /**
+     * Creates a sink
+     * @param outputFilename Path to the runs file, - for stdout
+     * @param parts Number of workers writing to the sink
+     * @param bufferSize Size of the buffer for each part
+     * @throws IOException
+     */
+    RunSink (String outputFilename, int parts, int bufferSize) throws IOException {
+        this.outputFilename = outputFilename;
+        this.bufferSize = bufferSize;
+        this.spillFiles = new Path[parts];
+        // Keep spill files next to the output so appending them doesn't cross file systems
+        Path directory = outputFilename.equals("-") ? null : Paths.get(outputFilename).toAbsolutePath().getParent();
+        for (int i = 1; i < parts; i++) {
+            spillFiles[i] = directory == null ? Files.createTempFile("MakeRuns_part_", ".txt")
+                    : Files.createTempFile(directory, "MakeRuns_part_", ".txt");
+            spillFiles[i].toFile().deleteOnExit();
+        }
+    }
+
+    /**
+     * Opens the stream a worker writes its runs to
+     * @param part Index of the worker
+     * @return Stream for the part
+     * @throws IOException
+     */
+    OutputStream openPart (int part) throws IOException {
+        if (part > 0) {
+            return new BufferedOutputStream(Files.newOutputStream(spillFiles[part], StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), bufferSize);
+        }
+        if (outputFilename.equals("-")) {
+            return new BufferedOutputStream(System.out, bufferSize);
+        }
+        return new BufferedOutputStream(Files.newOutputStream(Paths.get(outputFilename), StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.CREATE), bufferSize);
+    }
+
+    /**
+     * Closes the stream of a finished part. Stdout is only flushed since the spilled parts still have to follow it
+     * @param part Index of the worker
+     * @param stream Stream returned by openPart
+     * @throws IOException
+     */
+    void closePart (int part, OutputStream stream) throws IOException {
+        if (part == 0 && outputFilename.equals("-")) {
+            stream.flush();
+        } else {
+            stream.close();
+        }
+    }
+
+    /**
+     * Appends the spilled parts to the output once every part has been written and closed
+     * @throws IOException
+     */
+    void finish () throws IOException {
+        boolean toStdout = outputFilename.equals("-");
+        WritableByteChannel output = toStdout ? Channels.newChannel(System.out)
+                : FileChannel.open(Paths.get(outputFilename), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        try {
+            for (int i = 1; i < spillFiles.length; i++) {
+                // Let the kernel copy the bytes where it can
+                try (FileChannel part = FileChannel.open(spillFiles[i], StandardOpenOption.READ)) {
+                    long size = part.size();
+                    long position = 0;
+                    while (position < size) {
+                        position += part.transferTo(position, size - position, output);
+                    }
+                }
+                Files.delete(spillFiles[i]);
+            }
+        } finally {
+            if (toStdout) {
+                System.out.flush();
+            } else {
+                output.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/**
+ * Writes runs in the formats read by PolyMerge
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package MakeRuns;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes runs either as text, each record on its own line prefixed with - and each run ended by an
+ * empty line, or in the binary TapeFormat.
+ * Keeps count of what has been written so the run generators can be compared, and can describe
+ * each run in a RunManifest as it is written. Runs can also be spread over several streams by a RunRouter
+ */
+class RunWriter {
+    private OutputStream output;
+    private final RunManifest manifest;
+    private final BlockWriter blocks;
+    // Picks the stream for each run, null to write every run to output
+    private final RunRouter router;
+    private boolean runStarted = false;
+    private int runs = 0;
+    private long records = 0;
+    private long bytes = 0;
+
+    // Bytes written so far for text, and where the current run started
+    private long position = 0;
+    private long runStart = 0;
+    private long runRecords = 0;
+    // Copies of the first and last records of the current run, only kept for the manifest
+    private byte[] first = new byte[0];
+    private byte[] last = new byte[256];
+    private int lastLength = 0;
+
+    RunWriter (OutputStream output) { this(output, null, null); }
+
+    /**
+     * Creates a writer
+     * @param output Stream to write runs to
+     * @param manifest Manifest to describe the runs in, null for none
+     * @param blocks Writer for the binary TapeFormat on the same stream, null to write text
+     */
+    RunWriter (OutputStream output, RunManifest manifest, BlockWriter blocks) {
+        this.output = output;
+        this.manifest = manifest;
+        this.blocks = blocks;
+        this.router = null;
+    }
+
+    /**
+     * Creates a writer that asks a router for the stream of each run. Positions then span every stream,
+     * so there is no manifest
+     * @param router Router picking the stream for each run
+     * @param blocks Writer for the binary TapeFormat, moved to each run's stream, null to write text
+     */
+    RunWriter (RunRouter router, BlockWriter blocks) {
+        this.output = null;
+        this.manifest = null;
+        this.blocks = blocks;
+        this.router = router;
+    }
+
+    /**
+     * Moves to the stream the router picks once a run is started
+     * @throws IOException
+     */
+    private void startRun () throws IOException {
+        if (runStarted || router == null) { return; }
+        output = router.nextRun();
+        if (blocks != null) { blocks.setOutput(output); }
+        runStarted = true;
+    }
+
+    /**
+     * Gets the number of runs written
+     * @return Number of runs
+     */
+    int getRuns () { return runs; }
+
+    /**
+     * Gets the number of records written
+     * @return Number of records
+     */
+    long getRecords () { return records; }
+
+    /**
+     * Gets the number of record bytes written, not counting the run format
+     * @return Number of bytes
+     */
+    long getBytes () { return bytes; }
+
+    /**
+     * Gets the number of bytes written, including the run format
+     * @return Number of bytes
+     */
+    long getPosition () { return blocks != null ? blocks.getPosition() : position; }
+
+    /**
+     * Writes the header that starts a runs file. Only the binary format has one, and only the writer
+     * at the start of the file writes it
+     * @throws IOException
+     */
+    void writeHeader () throws IOException {
+        // Streams from a router are merge files, which have no header
+        if (blocks == null || router != null) { return; }
+        blocks.writeHeader();
+        runStart = getPosition();
+    }
+
+    /**
+     * Counts a record that has been written
+     * @param length Length of the record
+     */
+    private void count (int length) {
+        records++;
+        runRecords++;
+        bytes += length;
+    }
+
+    /**
+     * Writes a record in the chosen format
+     * @param source Array holding the record
+     * @param offset Offset of the record in the array
+     * @param length Length of the record
+     * @throws IOException
+     */
+    private void writeBytes (byte[] source, int offset, int length) throws IOException {
+        if (blocks != null) {
+            blocks.writeRecord(source, offset, length);
+        } else {
+            output.write('-');
+            output.write(source, offset, length);
+            output.write('\n');
+            position += length + 2;
+        }
+        count(length);
+    }
+
+    /**
+     * Writes the record held in the copy of the last record
+     * @throws IOException
+     */
+    private void writeLast () throws IOException {
+        if (runRecords == 0) { first = Arrays.copyOf(last, lastLength); }
+        writeBytes(last, 0, lastLength);
+    }
+
+    /**
+     * Makes sure the copy of the last record can hold a record
+     * @param length Length of the record
+     */
+    private void ensureLast (int length) {
+        if (last.length < length) { last = new byte[Math.max(length, last.length * 2)]; }
+    }
+
+    /**
+     * Writes a record from an arena
+     * @param arena Arena holding the record
+     * @param handle Handle of the record
+     * @throws IOException
+     */
+    void writeRecord (RecordArena arena, long handle) throws IOException {
+        startRun();
+        int length = arena.getLength(handle);
+        if (manifest != null) {
+            // Keep a copy so the manifest can have the last record of the run
+            lastLength = length;
+            ensureLast(length);
+            arena.copyTo(handle, last, 0);
+            writeLast();
+        } else if (blocks != null) {
+            blocks.writeRecord(arena, handle);
+            count(length);
+        } else {
+            output.write('-');
+            arena.writeTo(handle, output);
+            output.write('\n');
+            position += length + 2;
+            count(length);
+        }
+    }
+
+    /**
+     * Writes a record from an array
+     * @param source Array holding the record
+     * @param offset Offset of the record in the array
+     * @param length Length of the record
+     * @throws IOException
+     */
+    void writeRecord (byte[] source, int offset, int length) throws IOException {
+        startRun();
+        if (manifest != null) {
+            lastLength = length;
+            ensureLast(length);
+            System.arraycopy(source, offset, last, 0, length);
+            writeLast();
+        } else {
+            writeBytes(source, offset, length);
+        }
+    }
+
+    /**
+     * Ends the current run
+     * @throws IOException
+     */
+    void endRun () throws IOException {
+        startRun();
+        if (blocks != null) {
+            blocks.endRun();
+        } else {
+            output.write('\n');
+            position++;
+        }
+        runs++;
+        if (manifest != null) {
+            byte[] firstKey = runRecords == 0 ? new byte[0] : first;
+            byte[] lastKey = runRecords == 0 ? new byte[0] : Arrays.copyOf(last, lastLength);
+            manifest.add(runStart, getPosition() - runStart, runRecords, firstKey, lastKey);
+        }
+        runStart = getPosition();
+        runRecords = 0;
+        runStarted = false;
+    }
+
+    /**
+     * Flushes buffered output
+     * @throws IOException
+     */
+    void flush () throws IOException { if (output != null) { output.flush(); } }
+
+    /**
+     * Finishes writing runs, freeing the compressor of the binary format if there is one. The stream is left open
+     * @throws IOException
+     */
+    void close () throws IOException {
+        if (blocks != null) { blocks.close(); }
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Regression check for the in memory record sorts
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package MakeRuns;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class SorterCheck {
+    // Large enough that the multikey sort goes through the fork/join pool
+    final static private int manyRecords = 20000;
+    // Long enough that a sort going a word deeper per frame runs the stack out
+    final static private int longRecord = 400000;
+
+    /**
+     * Builds records that are mostly copies and prefixes of one long record, with some short random ones
+     * @param count Number of records
+     * @param length Length of the shared record
+     * @param random Random source
+     * @return The records
+     */
+    private static byte[][] makeRecords (int count, int length, Random random) {
+        byte[] shared = new byte[length];
+        for (int i = 0; i < length; i++) { shared[i] = (byte) ('a' + random.nextInt(2)); }
+        byte[][] records = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int kind = random.nextInt(4);
+            if (kind < 2) {
+                records[i] = shared;
+            } else if (kind == 2) {
+                records[i] = Arrays.copyOf(shared, random.nextInt(length + 1));
+            } else {
+                records[i] = new byte[random.nextInt(12)];
+                for (int j = 0; j < records[i].length; j++) { records[i][j] = (byte) random.nextInt(256); }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Sorts records with a sorter and checks they come out in unsigned byte order
+     * @param name Name of the sorter to report
+     * @param sorter Sorter to check
+     * @param records Records to sort
+     * @return Whether the records were sorted
+     */
+    private static boolean check (String name, RecordSorter sorter, byte[][] records) {
+        RecordArena arena = new RecordArena(1 << 20);
+        long[] prefixes = new long[records.length];
+        long[] handles = new long[records.length];
+        for (int i = 0; i < records.length; i++) {
+            handles[i] = arena.add(records[i], 0, records[i].length);
+            prefixes[i] = arena.getPrefix(handles[i]);
+        }
+        sorter.sort(arena, prefixes, handles, records.length);
+
+        byte[][] expected = records.clone();
+        Arrays.sort(expected, SorterCheck::compareBytes);
+        for (int i = 0; i < records.length; i++) {
+            byte[] actual = new byte[arena.getLength(handles[i])];
+            arena.copyTo(handles[i], actual, 0);
+            if (!Arrays.equals(actual, expected[i])) {
+                System.err.println(String.format("%s: %d records of up to %d bytes out of order at %d", name, records.length, longestRecord(records), i));
+                return false;
+            }
+        }
+        System.out.println(String.format("%s: %d records of up to %d bytes sorted", name, records.length, longestRecord(records)));
+        return true;
+    }
+
+    /**
+     * Compares two records as unsigned bytes
+     * @param a First record
+     * @param b Second record
+     * @return Negative, zero or positive as a is before, equal to or after b
+     */
+    private static int compareBytes (byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int difference = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (difference != 0) { return difference; }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Gets the length of the longest record
+     * @param records Records to look at
+     * @return Length of the longest record
+     */
+    private static int longestRecord (byte[][] records) {
+        int longest = 0;
+        for (byte[] record : records) { longest = Math.max(longest, record.length); }
+        return longest;
+    }
+
+    public static void main (String[] args) {
+        Random random = new Random(0x5EED);
+        // Few long duplicates go a word deeper per partition, many short ones go through the pool
+        byte[][][] inputs = {
+            makeRecords(40, longRecord, random),
+            makeRecords(manyRecords, 2000, random),
+        };
+        boolean passed = true;
+        for (byte[][] records : inputs) {
+            passed &= check("multikey", new MultikeyRecordSorter(), records);
+            passed &= check("merge", new MergeRecordSorter(), records);
+        }
+        if (!passed) { System.exit(1); }
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Temporary file of records that can be read back in either direction
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package MakeRuns;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Holds records that can't be written to the output yet. Each record is stored with its length both
+ * before and after its bytes, so the file can be walked from either end.
+ * Reads go through a window of the file that is reloaded towards the direction of travel
+ */
+class SpillFile {
+    // Size of the length stored at each end of a record
+    final static private int lengthSize = 4;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final DataOutputStream output;
+    private final ByteBuffer window;
+    private long windowStart = 0;
+    private long windowEnd = 0;
+    private long size = 0;
+    private byte[] scratch = new byte[256];
+
+    /**
+     * Creates an empty spill file in the temporary directory
+     * @param prefix Prefix of the file name
+     * @param bufferSize Size of the write buffer and read window
+     * @throws IOException
+     */
+    SpillFile (String prefix, int bufferSize) throws IOException {
+        this.path = Files.createTempFile(prefix, ".tmp");
+        path.toFile().deleteOnExit();
+        this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), bufferSize));
+        this.window = ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Checks if the file holds any records
+     * @return True if there are no records
+     */
+    boolean isEmpty () { return size == 0; }
+
+    /**
+     * Appends a record
+     * @param arena Arena holding the record
+     * @param handle Handle of the record
+     * @throws IOException
+     */
+    void append (RecordArena arena, long handle) throws IOException {
+        int length = arena.getLength(handle);
+        output.writeInt(length);
+        arena.writeTo(handle, output);
+        output.writeInt(length);
+        size += length + 2 * lengthSize;
+    }
+
+    /**
+     * Reads a range of the file into the scratch array
+     * @param from Offset of the first byte
+     * @param length Number of bytes
+     * @param forward True to keep the bytes after the range in the window, false to keep the bytes before it
+     * @throws IOException
+     */
+    private void read (long from, int length, boolean forward) throws IOException {
+        if (scratch.length < length) { scratch = new byte[Math.max(length, scratch.length * 2)]; }
+        if (length > window.capacity()) {
+            // Too big for the window, read it straight into the scratch array
+            readFully(ByteBuffer.wrap(scratch, 0, length), from);
+            return;
+        }
+        if (from < windowStart || from + length > windowEnd) {
+            windowStart = forward ? from : Math.max(0, from + length - window.capacity());
+            windowEnd = Math.min(size, windowStart + window.capacity());
+            window.clear();
+            window.limit((int) (windowEnd - windowStart));
+            readFully(window, windowStart);
+        }
+        System.arraycopy(window.array(), (int) (from - windowStart), scratch, 0, length);
+    }
+
+    /**
+     * Fills a buffer from the file
+     * @param buffer Buffer to fill up to its limit
+     * @param position Offset in the file to read from
+     * @throws IOException
+     */
+    private void readFully (ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) { throw new EOFException("Spill file is shorter than expected"); }
+        }
+    }
+
+    /**
+     * Reads a stored length
+     * @param from Offset of the length
+     * @param forward Direction the file is being read in
+     * @return The length
+     * @throws IOException
+     */
+    private int readLength (long from, boolean forward) throws IOException {
+        read(from, lengthSize, forward);
+        return ((scratch[0] & 0xFF) << 24) | ((scratch[1] & 0xFF) << 16) | ((scratch[2] & 0xFF) << 8) | (scratch[3] & 0xFF);
+    }
+
+    /**
+     * Writes every record in the order they were appended
+     * @param writer Writer to write the records with
+     * @throws IOException
+     */
+    void copyForward (RunWriter writer) throws IOException {
+        output.flush();
+        long position = 0;
+        while (position < size) {
+            int length = readLength(position, true);
+            read(position + lengthSize, length, true);
+            writer.writeRecord(scratch, 0, length);
+            position += length + 2 * lengthSize;
+        }
+    }
+
+    /**
+     * Writes every record in the reverse of the order they were appended
+     * @param writer Writer to write the records with
+     * @throws IOException
+     */
+    void copyBackward (RunWriter writer) throws IOException {
+        output.flush();
+        long position = size;
+        while (position > 0) {
+            int length = readLength(position - lengthSize, false);
+            read(position - lengthSize - length, length, false);
+            writer.writeRecord(scratch, 0, length);
+            position -= length + 2 * lengthSize;
+        }
+    }
+
+    /**
+     * Empties the file so it can be reused
+     * @throws IOException
+     */
+    void clear () throws IOException {
+        output.flush();
+        // Truncating also moves the write position back to the start
+        channel.truncate(0);
+        size = 0;
+        windowStart = 0;
+        windowEnd = 0;
+    }
+
+    /**
+     * Closes and deletes the file
+     * @throws IOException
+     */
+    void close () throws IOException {
+        output.close();
+        Files.deleteIfExists(path);
+    }
+}
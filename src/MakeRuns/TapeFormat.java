@@ -0,0 +1,150 @@
+/**
+ * Binary format for runs files and tapes
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package MakeRuns;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Binary alternative to the text runs format, shared by MakeRuns and PolyMerge.
+ * A runs file starts with a magic number and is followed by its runs. Each run is a series of blocks
+ * and ends with a block of zero records. A block starts with its number of records and its length in
+ * bytes, then holds its records, each a length followed by the raw bytes. All numbers are unsigned
+ * varints, seven bits per byte with the high bit set on all but the last byte.
+ * Runs are written a block at a time because replacement selection doesn't know how long a run is
+ * until it ends. Readers still know exactly how much to read for each block, and can skip a run
+ * block by block without looking at its records.
+ * Compressed runs files have their own magic number, and each block header has the length of the
+ * block as stored after its length. The stored bytes are the block deflated on its own, or the block
+ * as it is when the stored length equals the block length
+ */
+public class TapeFormat {
+    // Starts every binary runs file. Text runs files start with - or an empty line, never a zero byte
+    final static private byte[] magic = { 0, 'R', 'U', 'N' };
+    final static private byte[] compressedMagic = { 0, 'R', 'U', 'Z' };
+    // Size a block is filled to before it is written
+    final static public int blockSize = 1 << 16;
+
+    private TapeFormat () { }
+
+    /**
+     * Gets the length of the header at the start of a binary runs file
+     * @return Length in bytes
+     */
+    public static int getHeaderLength () { return magic.length; }
+
+    /**
+     * Writes the header that starts a binary runs file
+     * @param output Stream to write to
+     * @param compressed True if the blocks are compressed
+     * @throws IOException
+     */
+    public static void writeHeader (OutputStream output, boolean compressed) throws IOException {
+        output.write(compressed ? compressedMagic : magic);
+    }
+
+    /**
+     * Reads what could be the header of a binary runs file
+     * @param input Stream to read from
+     * @return The header, or null if the stream is too short to have one
+     * @throws IOException
+     */
+    private static byte[] tryReadHeader (InputStream input) throws IOException {
+        byte[] header = new byte[magic.length];
+        int read = 0;
+        while (read < header.length) {
+            int count = input.read(header, read, header.length - read);
+            if (count < 0) { return null; }
+            read += count;
+        }
+        return header;
+    }
+
+    /**
+     * Reads and checks the header of a binary runs file
+     * @param input Stream to read from
+     * @return True if the blocks are compressed
+     * @throws IOException If the header is missing
+     */
+    public static boolean readHeader (InputStream input) throws IOException {
+        byte[] header = tryReadHeader(input);
+        if (Arrays.equals(header, magic)) { return false; }
+        if (Arrays.equals(header, compressedMagic)) { return true; }
+        throw new IOException("Not a binary runs file");
+    }
+
+    /**
+     * Checks if a file is a binary runs file
+     * @param path Path to the file
+     * @return True if the file starts with either binary header
+     * @throws IOException
+     */
+    public static boolean isBinary (Path path) throws IOException {
+        try (InputStream input = Files.newInputStream(path)) {
+            byte[] header = tryReadHeader(input);
+            return Arrays.equals(header, magic) || Arrays.equals(header, compressedMagic);
+        }
+    }
+
+    /**
+     * Checks if a file is a compressed binary runs file
+     * @param path Path to the file
+     * @return True if the file starts with the compressed header
+     * @throws IOException
+     */
+    public static boolean isCompressed (Path path) throws IOException {
+        try (InputStream input = Files.newInputStream(path)) {
+            return Arrays.equals(tryReadHeader(input), compressedMagic);
+        }
+    }
+
+    /**
+     * Gets the number of bytes a varint takes
+     * @param value Value to encode
+     * @return Number of bytes
+     */
+    public static int getVarintSize (long value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) { size++; }
+        return size;
+    }
+
+    /**
+     * Encodes a varint into an array
+     * @param value Value to encode
+     * @param destination Array to write to
+     * @param offset Offset to write at
+     * @return Offset after the varint
+     */
+    public static int putVarint (long value, byte[] destination, int offset) {
+        while ((value & ~0x7FL) != 0) {
+            destination[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        destination[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Writes a varint to a stream
+     * @param value Value to encode
+     * @param output Stream to write to
+     * @throws IOException
+     */
+    public static void writeVarint (long value, OutputStream output) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+}
@@ -0,0 +1,290 @@
+/**
+ * Two heap replacement selection over records kept in a RecordArena
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package MakeRuns;
+
+import Heap.LongIntHeap;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Runs replacement selection with a run that grows in both directions.
+ * Each run starts from a pivot record. Records not below the last ascending record go to a min heap
+ * and grow the run upwards, records not above the last descending record go to a max heap and grow it
+ * downwards, and anything in between waits for the next run. Descending input therefore makes runs as
+ * long as ascending input does, instead of runs exactly the size of memory.
+ * The descending half is spilled and read back in reverse once the run ends, followed by the ascending
+ * half, so the run reads back in ascending order
+ */
+class TwoHeapRunGenerator implements RunGenerator {
+    // Bytes of bookkeeping per record: key and payload in both heaps, next run entry, handle, prefix and free slot entry
+    final static private int slotOverhead = 12 + 12 + 4 + 8 + 8 + 4;
+    // Initial number of slots when the heaps are sized by memory
+    final static private int initialSlots = 1024;
+    // Handle used when there is no last written record
+    final static private long noRecord = -1;
+    // Size of the buffers for the spilled halves of a run
+    final static private int spillBufferSize = 1 << 16;
+
+    private final int maxRecords;
+    private final long memoryBudget;
+    private final LineSource input;
+    private final RecordArena arena = new RecordArena(ArenaRunGenerator.arenaBlockSize);
+    private final LongIntHeap ascending;
+    // Max heap, keys are complemented prefixes
+    private final LongIntHeap descending;
+
+    // Handle and prefix of the record in each slot
+    private long[] handles;
+    private long[] prefixes;
+    private int[] freeSlots;
+    private int numFreeSlots = 0;
+    private int nextSlot = 0;
+    // Slots of records waiting for the next run
+    private int[] nextRun;
+    private int numNextRun = 0;
+    private int lastNextRunSlot = -1;
+    private long usedBytes = 0;
+    // True while the input has a line waiting to be admitted
+    private boolean pending;
+
+    private boolean runActive = false;
+    private long lastAscending = noRecord;
+    private long lastAscendingPrefix = 0;
+    private long lastDescending = noRecord;
+    private long lastDescendingPrefix = 0;
+
+    /**
+     * Creates a run generator
+     * @param maxRecords Maximum number of records to hold at once
+     * @param memoryBudget Maximum number of bytes of records and bookkeeping to hold at once
+     * @param input LineSource to get input from
+     * @throws IOException
+     */
+    TwoHeapRunGenerator (int maxRecords, long memoryBudget, LineSource input) throws IOException {
+        this.maxRecords = maxRecords;
+        this.memoryBudget = memoryBudget;
+        this.input = input;
+        int capacity = Math.min(maxRecords, initialSlots);
+        this.handles = new long[capacity];
+        this.prefixes = new long[capacity];
+        this.freeSlots = new int[capacity];
+        this.nextRun = new int[capacity];
+        this.ascending = new LongIntHeap(new long[capacity], new int[capacity], 0,
+                (a, b) -> arena.compare(handles[a], handles[b]));
+        this.descending = new LongIntHeap(new long[capacity], new int[capacity], 0,
+                (a, b) -> arena.compare(handles[b], handles[a]));
+        this.pending = input.next();
+    }
+
+    /**
+     * Gets the number of bytes a record takes up, including its bookkeeping
+     * @param length Length of the record
+     * @return Number of bytes
+     */
+    private static long getCost (int length) { return RecordArena.getStoredSize(length) + slotOverhead; }
+
+    /**
+     * Compares two records, prefixes first and then the full records
+     * @param prefixA Prefix of the first record
+     * @param handleA Handle of the first record
+     * @param prefixB Prefix of the second record
+     * @param handleB Handle of the second record
+     * @return Comparison of the first record against the second
+     */
+    private int compare (long prefixA, long handleA, long prefixB, long handleB) {
+        if (prefixA != prefixB) { return prefixA < prefixB ? -1 : 1; }
+        return arena.compare(handleA, handleB);
+    }
+
+    /**
+     * Gets the number of slots holding a record
+     * @return Number of slots in use
+     */
+    private int getUsedSlots () { return nextSlot - numFreeSlots; }
+
+    /**
+     * Checks if the pending line can be admitted
+     * @return True if there is a pending line and it fits
+     */
+    private boolean canAdmit () {
+        if (!pending || getUsedSlots() >= maxRecords) { return false; }
+        // Always admit something when nothing is held so a single huge record can't stall the runs
+        if (getUsedSlots() == 0) { return true; }
+        return usedBytes + getCost(input.getLength()) <= memoryBudget;
+    }
+
+    /**
+     * Gets an empty slot, growing the slot arrays if needed
+     * @return Index of the slot
+     */
+    private int takeSlot () {
+        if (numFreeSlots > 0) { return freeSlots[--numFreeSlots]; }
+        if (nextSlot == handles.length) {
+            int capacity = (int) Math.min((long) handles.length * 2, maxRecords);
+            handles = Arrays.copyOf(handles, capacity);
+            prefixes = Arrays.copyOf(prefixes, capacity);
+            freeSlots = Arrays.copyOf(freeSlots, capacity);
+            nextRun = Arrays.copyOf(nextRun, capacity);
+            ascending.ensureCapacity(capacity);
+            descending.ensureCapacity(capacity);
+        }
+        return nextSlot++;
+    }
+
+    /**
+     * Puts a held record in the heap of the side of the run it can extend, or holds it for the next run
+     * @param slot Slot of the record
+     */
+    private void place (int slot) {
+        long prefix = prefixes[slot];
+        long handle = handles[slot];
+        if (runActive && compare(prefix, handle, lastAscendingPrefix, lastAscending) >= 0) {
+            ascending.insert(prefix, slot);
+        } else if (runActive && compare(prefix, handle, lastDescendingPrefix, lastDescending) <= 0) {
+            descending.insert(~prefix, slot);
+        } else {
+            nextRun[numNextRun++] = slot;
+            lastNextRunSlot = slot;
+        }
+    }
+
+    /**
+     * Admits pending lines while they fit
+     * @throws IOException
+     */
+    private void fill () throws IOException {
+        while (canAdmit()) {
+            int slot = takeSlot();
+            handles[slot] = input.addTo(arena);
+            prefixes[slot] = arena.getPrefix(handles[slot]);
+            usedBytes += getCost(input.getLength());
+            pending = input.next();
+            place(slot);
+        }
+    }
+
+    /**
+     * Releases a record that is no longer needed
+     * @param handle Handle of the record
+     */
+    private void release (long handle) {
+        usedBytes -= getCost(arena.getLength(handle));
+        arena.release(handle);
+    }
+
+    /**
+     * Spills a record to the ascending half of the run. The record is kept for comparisons until the next
+     * ascending record replaces it
+     * @param slot Slot of the record
+     * @param spill Spill file of the ascending half
+     * @throws IOException
+     */
+    private void writeAscending (int slot, SpillFile spill) throws IOException {
+        spill.append(arena, handles[slot]);
+        long previous = lastAscending;
+        lastAscending = handles[slot];
+        lastAscendingPrefix = prefixes[slot];
+        if (previous != noRecord && previous != lastDescending) { release(previous); }
+        freeSlots[numFreeSlots++] = slot;
+    }
+
+    /**
+     * Spills a record to the descending half of the run. The record is kept for comparisons until the next
+     * descending record replaces it
+     * @param slot Slot of the record
+     * @param spill Spill file of the descending half
+     * @throws IOException
+     */
+    private void writeDescending (int slot, SpillFile spill) throws IOException {
+        spill.append(arena, handles[slot]);
+        long previous = lastDescending;
+        lastDescending = handles[slot];
+        lastDescendingPrefix = prefixes[slot];
+        if (previous != noRecord && previous != lastAscending) { release(previous); }
+        freeSlots[numFreeSlots++] = slot;
+    }
+
+    /**
+     * Starts a run from the records held for it. The most recently read record is the pivot, since it
+     * is the best guess of where the input is heading. It is written first and both halves grow from it
+     * @param ascendingSpill Spill file of the ascending half
+     */
+    private void startRun (SpillFile ascendingSpill) throws IOException {
+        int pivot = lastNextRunSlot;
+        int held = numNextRun;
+        numNextRun = 0;
+        lastNextRunSlot = -1;
+        writeAscending(pivot, ascendingSpill);
+        lastDescending = lastAscending;
+        lastDescendingPrefix = lastAscendingPrefix;
+        runActive = true;
+        // Records from the pivot up extend the ascending half, the rest the descending half
+        for (int i = 0; i < held; i++) {
+            if (nextRun[i] != pivot) { place(nextRun[i]); }
+        }
+    }
+
+    /**
+     * Writes out the run, descending half reversed first and then the ascending half
+     * @param output Writer to write the run with
+     * @param ascendingSpill Spill file of the ascending half
+     * @param descendingSpill Spill file of the descending half
+     * @throws IOException
+     */
+    private void endRun (RunWriter output, SpillFile ascendingSpill, SpillFile descendingSpill) throws IOException {
+        descendingSpill.copyBackward(output);
+        ascendingSpill.copyForward(output);
+        output.endRun();
+        descendingSpill.clear();
+        ascendingSpill.clear();
+        release(lastAscending);
+        if (lastDescending != lastAscending) { release(lastDescending); }
+        lastAscending = noRecord;
+        lastDescending = noRecord;
+        runActive = false;
+    }
+
+    /**
+     * Picks the heap to write from next. Draining the larger heap leaves the records the input is
+     * currently extending in memory, which is the look ahead that keeps a run going past out of order
+     * records. Writing each new record straight back out instead would let a single large record end
+     * the ascending half
+     * @return True to write from the ascending heap
+     */
+    private boolean writeFromAscending () { return ascending.getHeapSize() >= descending.getHeapSize(); }
+
+    @Override
+    public void run (RunWriter output) throws IOException {
+        SpillFile ascendingSpill = new SpillFile("MakeRuns_ascending_", spillBufferSize);
+        SpillFile descendingSpill = new SpillFile("MakeRuns_descending_", spillBufferSize);
+        try {
+            // No run is active yet, so everything read is held for the first run
+            fill();
+            while (numNextRun > 0) {
+                startRun(ascendingSpill);
+                fill();
+                while (ascending.getHeapSize() > 0 || descending.getHeapSize() > 0) {
+                    if (writeFromAscending()) {
+                        writeAscending(ascending.remove(false), ascendingSpill);
+                    } else {
+                        writeDescending(descending.remove(false), descendingSpill);
+                    }
+                    fill();
+                }
+                endRun(output, ascendingSpill, descendingSpill);
+                // Top up with the memory the run freed, all of it held for the next run
+                fill();
+            }
+            output.flush();
+        } finally {
+            ascendingSpill.close();
+            descendingSpill.close();
+        }
+    }
+}
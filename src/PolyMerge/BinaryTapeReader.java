@@ -0,0 +1,211 @@
+/**
+ * Reads runs from a binary tape
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package PolyMerge;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the binary format described in MakeRuns.TapeFormat a block at a time.
+ * Cursors are pointed straight at records in the block, which stays put until the next read
+ */
+class BinaryTapeReader implements TapeReader {
+    private final InputStream input;
+    private final byte[] buffer;
+    private int position = 0;
+    private int limit = 0;
+    private final Inflater inflater;
+    // Block being read, and the records left in it
+    private byte[] block = new byte[1 << 16];
+    private int blockPosition = 0;
+    private int blockRecords = 0;
+    private byte[] stored;
+
+    /**
+     * Creates a reader
+     * @param input Stream to read from, positioned after any header
+     * @param bufferSize Size of the read buffer
+     * @param compressed True if the blocks are compressed
+     */
+    BinaryTapeReader(InputStream input, int bufferSize, boolean compressed) {
+        this.input = input;
+        this.buffer = new byte[bufferSize];
+        this.inflater = compressed ? new Inflater(true) : null;
+        this.stored = compressed ? new byte[1 << 16] : null;
+    }
+
+    /**
+     * Refills the buffer once it has all been read
+     * @return False if the tape has ended
+     * @throws IOException
+     */
+    private boolean fill() throws IOException {
+        if(position < limit) {
+            return true;
+        }
+        int count;
+        do {
+            count = input.read(buffer, 0, buffer.length);
+        } while(count == 0);
+        position = 0;
+        limit = Math.max(count, 0);
+        return count > 0;
+    }
+
+    /**
+     * Reads a varint
+     * @return The value
+     * @throws IOException If the tape ends part way through
+     */
+    private int readVarint() throws IOException {
+        int value = 0;
+        for(int shift = 0; shift < 32; shift += 7) {
+            if(!fill()) {
+                throw new EOFException("Tape ends part way through a run");
+            }
+            int b = buffer[position++];
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed number on tape");
+    }
+
+    /**
+     * Reads or skips bytes from the tape
+     * @param destination Array to read into, null to skip the bytes
+     * @param length Number of bytes
+     * @throws IOException If the tape ends first
+     */
+    private void readFully(byte[] destination, int length) throws IOException {
+        int offset = 0;
+        while(offset < length) {
+            if(!fill()) {
+                throw new EOFException("Tape ends part way through a run");
+            }
+            int count = Math.min(length - offset, limit - position);
+            if(destination != null) {
+                System.arraycopy(buffer, position, destination, offset, count);
+            }
+            position += count;
+            offset += count;
+        }
+    }
+
+    /**
+     * Reads the next block of the run
+     * @return False if the run has ended
+     * @throws IOException
+     */
+    private boolean readBlock() throws IOException {
+        // A block with no records ends the run
+        int records = readVarint();
+        if(records == 0) {
+            return false;
+        }
+        int length = readVarint();
+        int storedLength = inflater != null ? readVarint() : length;
+        if(block.length < length) {
+            block = new byte[length];
+        }
+        if(storedLength == length) {
+            readFully(block, length);
+        } else {
+            if(stored.length < storedLength) {
+                stored = new byte[storedLength];
+            }
+            readFully(stored, storedLength);
+            inflate(storedLength, length);
+        }
+        blockPosition = 0;
+        blockRecords = records;
+        return true;
+    }
+
+    /**
+     * Inflates a compressed block into the block array
+     * @param storedLength Length of the compressed block
+     * @param length Length of the block
+     * @throws IOException If the block is corrupt
+     */
+    private void inflate(int storedLength, int length) throws IOException {
+        inflate(inflater, stored, storedLength, block, 0, length);
+    }
+
+    /**
+     * Inflates a compressed block
+     * @param inflater Raw inflater to use, it is reset first
+     * @param source Array holding the compressed block
+     * @param storedLength Length of the compressed block
+     * @param destination Array to inflate into
+     * @param offset Offset in the array to inflate to
+     * @param length Length of the block
+     * @throws IOException If the block is corrupt
+     */
+    static void inflate(Inflater inflater, byte[] source, int storedLength, byte[] destination, int offset, int length) throws IOException {
+        inflater.reset();
+        inflater.setInput(source, 0, storedLength);
+        try {
+            int count = 0;
+            while(count < length && !inflater.finished()) {
+                int inflated = inflater.inflate(destination, offset + count, length - count);
+                if(inflated == 0 && inflater.needsInput()) {
+                    break;
+                }
+                count += inflated;
+            }
+            if(count != length) {
+                throw new IOException("Compressed block on tape is truncated");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed block on tape is corrupt", e);
+        }
+    }
+
+    public boolean readRecord(RecordCursor cursor) throws IOException {
+        if(blockRecords == 0 && !readBlock()) {
+            return false;
+        }
+        blockRecords--;
+        // Decode the record length from the block
+        int length = 0;
+        for(int shift = 0; ; shift += 7) {
+            int b = block[blockPosition++];
+            length |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                break;
+            }
+        }
+        cursor.set(block, blockPosition, length);
+        blockPosition += length;
+        return true;
+    }
+
+    public boolean hasMoreRuns() throws IOException {
+        return fill();
+    }
+
+    public void skipRun() throws IOException {
+        // Block lengths let whole blocks be skipped without inflating them
+        while(readVarint() != 0) {
+            int length = readVarint();
+            readFully(null, inflater != null ? readVarint() : length);
+        }
+    }
+
+    public void close() throws IOException {
+        if(inflater != null) {
+            inflater.end();
+        }
+        input.close();
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Writes runs to a binary tape
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package PolyMerge;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import MakeRuns.BlockWriter;
+
+/**
+ * Writes the binary format described in MakeRuns.TapeFormat through the same BlockWriter MakeRuns
+ * uses. Tapes don't get the header of a runs file, they are only read back by PolyMerge
+ */
+class BinaryTapeWriter implements TapeWriter {
+    private final OutputStream output;
+    private final BlockWriter blocks;
+
+    /**
+     * Creates a writer
+     * @param output Stream to write to
+     * @param compress True to deflate each block
+     */
+    BinaryTapeWriter(OutputStream output, boolean compress) {
+        this.output = output;
+        this.blocks = new BlockWriter(output, compress);
+    }
+
+    public void writeRecord(RecordCursor record) throws IOException {
+        blocks.writeRecord(record.getBytes(), record.getOffset(), record.getLength());
+    }
+
+    public void endRun() throws IOException {
+        blocks.endRun();
+    }
+
+    public long getPosition() {
+        return blocks.getPosition();
+    }
+
+    public void close() throws IOException {
+        blocks.close();
+        output.close();
+    }
+}
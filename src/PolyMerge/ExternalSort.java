@@ -0,0 +1,105 @@
+/**
+ * Run generation and merging in one process
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package PolyMerge;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import MakeRuns.MakeRuns;
+import MakeRuns.RunManifest;
+
+/**
+ * Sorts a file with MakeRuns and PolyMerge in the same process. For the polyphase merge each run is
+ * written straight onto the temporary file the distribution picks for it as it comes out of the heap.
+ * The other merges read runs in place, so the runs go onto one temporary file and its manifest is
+ * handed over in memory, without the file being scanned or copied before merging
+ */
+class ExternalSort {
+    final static private String usage = "Usage: java ExternalSort [MakeRuns options] [PolyMerge options] <number of files> <input file>\n" +
+            "\tNumber of files: The number of temporary files the polyphase merge uses\n" +
+            "\tInput file: The file to sort, - for stdin\n" +
+            "\tRuns are made with the arena, as binary runs unless --format=text is given, and --compress applies to the runs and the temporary files";
+
+    // Size of the buffer runs are written through
+    final static private int runBufferSize = 1 << 16;
+
+    public static void main (String[] args) {
+        // Runs never leave the process, so use the format that is cheapest to read back
+        MakeRuns.parseOption("--format=binary");
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--numeric")) {
+                System.err.println("--numeric needs MakeRuns with a heap size, run the stages separately");
+                System.exit(1);
+            } else if (arg.equals("--compress")) {
+                // Compresses the runs as well as the temporary files
+                MakeRuns.parseOption(arg);
+                PolyMerge.parseOption(arg);
+            } else if (!MakeRuns.parseOption(arg) && !PolyMerge.parseOption(arg)) {
+                if (arg.startsWith("--")) {
+                    System.err.println("Unknown option `" + arg + "`\n" + usage);
+                    System.exit(1);
+                }
+                positional.add(arg);
+            }
+        }
+        // Sorted output goes to stdout, so check the options MakeRuns can't use here before it reports them there
+        if (MakeRuns.getThreadCount() > 1) {
+            System.err.println("--threads needs MakeRuns writing to a runs file, run the stages separately");
+            System.exit(1);
+        }
+        if (MakeRuns.isCompressed() && !MakeRuns.isBinaryFormat()) {
+            System.err.println("--compress needs binary runs and can't be used with --format=text");
+            System.exit(1);
+        }
+        if (positional.size() != 2) {
+            System.err.println(usage);
+            System.exit(1);
+        }
+
+        int numFiles = 0;
+        try {
+            numFiles = Integer.parseInt(positional.get(0));
+        } catch (NumberFormatException e) {
+            System.err.println("Number of files must be a valid integer");
+            System.exit(1);
+        }
+        if (numFiles <= 2) {
+            System.err.println("Number of files must be greater than 2");
+            System.exit(1);
+        }
+
+        String inputFilename = positional.get(1);
+        if (PolyMerge.isPolyphaseMerge()) {
+            PolyMerge.sortGeneratedRuns(numFiles, MakeRuns.isBinaryFormat(), MakeRuns.isCompressed(),
+                    router -> MakeRuns.generateRuns(inputFilename, router));
+            return;
+        }
+
+        File runsTape = new File("./PolyMerge_tmp_runs.txt");
+        runsTape.deleteOnExit();
+        RunManifest manifest = null;
+        try {
+            OutputStream output = new BufferedOutputStream(Files.newOutputStream(runsTape.toPath(),
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.CREATE), runBufferSize);
+            manifest = MakeRuns.generateRuns(inputFilename, output);
+        } catch (IOException e) {
+            System.err.println("Could not create temporary runs file for writing");
+            System.exit(1);
+        }
+
+        long[] boundaries = RunBoundaries.fromManifest(manifest);
+        PolyMerge.sortRuns(numFiles, boundaries.length - 1, runsTape.getPath(), boundaries);
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Input stream over part of a file
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package PolyMerge;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a range of bytes from a file channel with positional reads, so any number of ranges can be
+ * read at once through one open file. Closing the stream leaves the channel open
+ */
+class FileRangeInputStream extends InputStream {
+    private final FileChannel channel;
+    private long position;
+    private final long end;
+
+    /**
+     * Creates a stream
+     * @param channel Channel to read from
+     * @param start Offset of the first byte
+     * @param end Offset after the last byte
+     */
+    FileRangeInputStream(FileChannel channel, long start, long end) {
+        this.channel = channel;
+        this.position = start;
+        this.end = end;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] destination, int offset, int length) throws IOException {
+        if(length == 0) {
+            return 0;
+        }
+        if(position >= end) {
+            return -1;
+        }
+        int count = channel.read(ByteBuffer.wrap(destination, offset, (int) Math.min(length, end - position)), position);
+        if(count < 0) {
+            return -1;
+        }
+        position += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long count) {
+        long skipped = Math.max(0, Math.min(count, end - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, end - position);
+    }
+}
@@ -0,0 +1,537 @@
+/**
+ * Read ahead for the tapes of a merge, shared out by forecasting
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package PolyMerge;
+
+import MakeRuns.TapeFormat;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.Inflater;
+
+/**
+ * Reads ahead for every tape of a merge from one pool of buffers, using forecasting to decide which
+ * tape gets the next free buffer. Buffers are loaded with whole records so the last key loaded for each
+ * tape is known, and the tape whose last key is smallest is the one the merge will run dry first.
+ * A tape that has loaded past the end of its current run can't run dry until the merge moves on, so
+ * run ends are counted ahead of the keys.
+ * A buffer is always kept back for each tape that could be open but has none, and the rest go wherever
+ * the forecast says, so a merge with many files gets read ahead without two buffers per file.
+ * Compressed blocks are inflated as they are loaded, so binary tapes always come out uncompressed.
+ * Loads queue on the executor when its threads are busy, so there can be far more tapes than threads
+ */
+class ForecastingReadAhead {
+    private final ExecutorService pool;
+    private final Comparator<RecordCursor> comparer;
+    private final boolean binary;
+    private final int maxTapes;
+    private final int bufferSize;
+    private final ArrayDeque<byte[]> freeBuffers = new ArrayDeque<>();
+    private final List<Tape> tapes = new ArrayList<>();
+
+    /**
+     * Creates the pool of buffers
+     * @param pool Pool to run the loads on. Any number of threads works, loads queue up when they are all busy
+     * @param maxTapes Most tapes that are open at once
+     * @param buffers Number of buffers, at least one for each tape that is open at once
+     * @param bufferSize Size of each buffer
+     * @param binary True if the tapes are in the binary TapeFormat, false for text
+     * @param comparer Order the tapes are merged in
+     */
+    ForecastingReadAhead(ExecutorService pool, int maxTapes, int buffers, int bufferSize, boolean binary, Comparator<RecordCursor> comparer) {
+        this.pool = pool;
+        this.comparer = comparer;
+        this.binary = binary;
+        this.maxTapes = maxTapes;
+        this.bufferSize = bufferSize;
+        for(int i = 0; i < buffers; i++) {
+            freeBuffers.push(new byte[bufferSize]);
+        }
+    }
+
+    /**
+     * Opens a tape and starts reading ahead on it
+     * @param input Stream of the tape
+     * @param compressed True if the blocks of a binary tape are compressed
+     * @return Stream reading the tape through the pool, with any compressed blocks inflated
+     */
+    synchronized InputStream open(InputStream input, boolean compressed) {
+        Tape tape = new Tape(input, compressed);
+        tapes.add(tape);
+        schedule();
+        return tape;
+    }
+
+    /**
+     * Hands the free buffers out, first to tapes with no buffer then to the tape forecast to run dry first
+     */
+    private void schedule() {
+        while(!freeBuffers.isEmpty()) {
+            Tape next = null;
+            int holding = 0;
+            for(Tape tape : tapes) {
+                if(tape.filling || !tape.isStarved()) {
+                    holding++;
+                }
+                if(tape.filling || tape.ended) {
+                    continue;
+                }
+                if(next == null || tape.runsDryBefore(next)) {
+                    next = tape;
+                }
+            }
+            if(next == null) {
+                return;
+            }
+            // Keep a buffer for every tape without one, including tapes still to be opened,
+            // or a tape the merge is waiting on could go without
+            if(!next.isStarved() && freeBuffers.size() <= maxTapes - holding) {
+                return;
+            }
+            next.startLoad(freeBuffers.pop());
+        }
+    }
+
+    /**
+     * Puts a buffer back in the pool. A buffer grown for a block bigger than the rest is swapped for one of
+     * the normal size, so one huge record doesn't keep its memory for the rest of the merge
+     * @param buffer Buffer that is free again
+     */
+    private void release(byte[] buffer) {
+        freeBuffers.push(buffer.length > bufferSize ? new byte[bufferSize] : buffer);
+    }
+
+    /**
+     * Takes in a load once it has finished
+     * @param tape Tape that was loaded
+     * @param chunk Records loaded
+     * @param ended True if the load reached the end of the tape
+     * @param error Error the load failed with, null if it succeeded
+     */
+    private synchronized void finished(Tape tape, Chunk chunk, boolean ended, IOException error) {
+        tape.filling = false;
+        tape.ended |= ended || error != null;
+        if(error != null) {
+            tape.failure = error;
+        }
+        if(chunk.length > 0 && error == null && !tape.closed) {
+            tape.loaded.add(chunk);
+            tape.runEndsAhead += chunk.runEnds;
+        } else {
+            release(chunk.buffer);
+        }
+        schedule();
+        notifyAll();
+    }
+
+    /**
+     * Buffer loaded with whole records from a tape
+     */
+    private static class Chunk {
+        byte[] buffer;
+        int length = 0;
+        // Number of runs that end in the chunk
+        int runEnds = 0;
+        // Last record in the chunk after its last run end, if there is one
+        final RecordCursor lastKey = new RecordCursor();
+        boolean hasKey = false;
+
+        Chunk(byte[] buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Stream for one tape. The merge thread reads the current chunk while loads queue up more behind it
+     */
+    private class Tape extends InputStream {
+        private final InputStream input;
+        private final boolean compressed;
+        // Guarded by the pool
+        private final ArrayDeque<Chunk> loaded = new ArrayDeque<>();
+        private Chunk current = null;
+        private boolean filling = false;
+        private boolean ended = false;
+        private boolean closed = false;
+        private IOException failure = null;
+        private int runEndsAhead = 0;
+        // Only used by the merge thread
+        private int position = 0;
+        // Only used by the load in flight
+        private byte[] partial = new byte[256];
+        private int partialLength = 0;
+        private boolean midLine = false;
+        private int pendingRecords = -1;
+        private int pendingLength = 0;
+        private int pendingStoredLength = 0;
+        private byte[] stored = null;
+        private final Inflater inflater;
+
+        Tape(InputStream input, boolean compressed) {
+            this.input = new BufferedInputStream(input, 1 << 16);
+            this.compressed = compressed;
+            this.inflater = compressed ? new Inflater(true) : null;
+        }
+
+        /**
+         * Checks if the tape holds no buffers, so the merge will wait on it as soon as it reads
+         * @return True if nothing is loaded
+         */
+        private boolean isStarved() {
+            return current == null && loaded.isEmpty();
+        }
+
+        /**
+         * Forecasts whether the merge will run out of this tape's records before another's
+         * @param other Tape to compare with
+         * @return True if this tape runs dry first
+         */
+        private boolean runsDryBefore(Tape other) {
+            Chunk newest = loaded.isEmpty() ? current : loaded.peekLast();
+            Chunk otherNewest = other.loaded.isEmpty() ? other.current : other.loaded.peekLast();
+            if(newest == null || otherNewest == null) {
+                return newest == null && otherNewest != null;
+            }
+            if(runEndsAhead != other.runEndsAhead) {
+                return runEndsAhead < other.runEndsAhead;
+            }
+            // A tape loaded up to the start of a run runs dry as soon as the merge gets there
+            if(!newest.hasKey || !otherNewest.hasKey) {
+                return !newest.hasKey && otherNewest.hasKey;
+            }
+            return comparer.compare(newest.lastKey, otherNewest.lastKey) < 0;
+        }
+
+        /**
+         * Starts loading a buffer in the background
+         * @param buffer Buffer to load into
+         */
+        private void startLoad(byte[] buffer) {
+            filling = true;
+            pool.execute(() -> {
+                Chunk chunk = new Chunk(buffer);
+                boolean end = false;
+                IOException error = null;
+                try {
+                    end = binary ? loadBlocks(chunk) : loadLines(chunk);
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    error = new IOException("Reading ahead failed", e);
+                }
+                finished(this, chunk, end, error);
+            });
+        }
+
+        /**
+         * Loads a chunk of text lines, holding back the line the buffer stops part way through
+         * @param chunk Chunk to load
+         * @return True if the tape has ended
+         * @throws IOException
+         */
+        private boolean loadLines(Chunk chunk) throws IOException {
+            byte[] buffer = chunk.buffer;
+            System.arraycopy(partial, 0, buffer, 0, partialLength);
+            int length = partialLength;
+            partialLength = 0;
+            boolean end = false;
+            while(length < buffer.length) {
+                int count = input.read(buffer, length, buffer.length - length);
+                if(count < 0) {
+                    end = true;
+                    break;
+                }
+                length += count;
+            }
+            int cut = length;
+            if(!end) {
+                int lastLine = length - 1;
+                while(lastLine >= 0 && buffer[lastLine] != '\n') {
+                    lastLine--;
+                }
+                // A line longer than the buffer is split, it just doesn't give a key
+                if(lastLine >= 0) {
+                    cut = lastLine + 1;
+                    partialLength = length - cut;
+                    if(partial.length < partialLength) {
+                        partial = new byte[buffer.length];
+                    }
+                    System.arraycopy(buffer, cut, partial, 0, partialLength);
+                }
+            }
+            chunk.length = cut;
+
+            // Count the empty lines ending runs and find the last line after them
+            int lineStart = midLine ? -1 : 0;
+            int keyStart = -1;
+            int keyEnd = -1;
+            for(int i = 0; i < cut; i++) {
+                if(buffer[i] != '\n') {
+                    continue;
+                }
+                if(i == lineStart) {
+                    chunk.runEnds++;
+                    keyStart = -1;
+                } else if(lineStart >= 0) {
+                    // Skip the - in front of the record
+                    keyStart = lineStart + 1;
+                    keyEnd = i;
+                }
+                lineStart = i + 1;
+            }
+            if(keyStart >= 0) {
+                chunk.lastKey.set(buffer, keyStart, keyEnd - keyStart);
+                chunk.hasKey = true;
+            }
+            if(cut > 0) {
+                midLine = buffer[cut - 1] != '\n';
+            }
+            return end;
+        }
+
+        /**
+         * Loads a chunk of whole binary blocks, inflating compressed ones
+         * @param chunk Chunk to load
+         * @return True if the tape has ended
+         * @throws IOException
+         */
+        private boolean loadBlocks(Chunk chunk) throws IOException {
+            int length = 0;
+            while(true) {
+                // The header of a block that didn't fit in the last chunk is kept for this one
+                if(pendingRecords < 0 && !readBlockHeader()) {
+                    chunk.length = length;
+                    return true;
+                }
+                if(pendingRecords == 0) {
+                    if(length == chunk.buffer.length) {
+                        break;
+                    }
+                    chunk.buffer[length++] = 0;
+                    chunk.runEnds++;
+                    chunk.hasKey = false;
+                    pendingRecords = -1;
+                    continue;
+                }
+                int size = TapeFormat.getVarintSize(pendingRecords) + TapeFormat.getVarintSize(pendingLength) + pendingLength;
+                if(length + size > chunk.buffer.length) {
+                    if(length > 0) {
+                        break;
+                    }
+                    // Block is bigger than a buffer, so it gets a bigger one that is dropped once it has been read
+                    chunk.buffer = new byte[size];
+                }
+                byte[] buffer = chunk.buffer;
+                length = TapeFormat.putVarint(pendingRecords, buffer, length);
+                length = TapeFormat.putVarint(pendingLength, buffer, length);
+                if(pendingStoredLength == pendingLength) {
+                    readFully(buffer, length, pendingLength);
+                } else {
+                    if(stored == null || stored.length < pendingStoredLength) {
+                        stored = new byte[Math.max(pendingStoredLength, 1 << 16)];
+                    }
+                    readFully(stored, 0, pendingStoredLength);
+                    BinaryTapeReader.inflate(inflater, stored, pendingStoredLength, buffer, length, pendingLength);
+                    if(stored.length > 1 << 16) {
+                        // Don't hold on to the space of a huge block
+                        stored = null;
+                    }
+                }
+                setLastKey(chunk, length, pendingRecords);
+                length += pendingLength;
+                pendingRecords = -1;
+            }
+            chunk.length = length;
+            return false;
+        }
+
+        /**
+         * Reads the header of the next block
+         * @return False if the tape has ended
+         * @throws IOException
+         */
+        private boolean readBlockHeader() throws IOException {
+            int records = readVarint(true);
+            if(records < 0) {
+                return false;
+            }
+            pendingRecords = records;
+            if(records > 0) {
+                pendingLength = readVarint(false);
+                pendingStoredLength = compressed ? readVarint(false) : pendingLength;
+            }
+            return true;
+        }
+
+        /**
+         * Points the key of a chunk at the last record of a block
+         * @param chunk Chunk holding the block
+         * @param offset Offset of the records of the block
+         * @param records Number of records in the block
+         */
+        private void setLastKey(Chunk chunk, int offset, int records) {
+            byte[] buffer = chunk.buffer;
+            int position = offset;
+            int start = offset;
+            int length = 0;
+            for(int i = 0; i < records; i++) {
+                length = 0;
+                for(int shift = 0; ; shift += 7) {
+                    int b = buffer[position++];
+                    length |= (b & 0x7F) << shift;
+                    if((b & 0x80) == 0) {
+                        break;
+                    }
+                }
+                start = position;
+                position += length;
+            }
+            chunk.lastKey.set(buffer, start, length);
+            chunk.hasKey = true;
+        }
+
+        /**
+         * Reads a varint from the tape
+         * @param endAllowed True if the tape may end before the varint
+         * @return The value, or -1 if the tape has ended
+         * @throws IOException If the tape ends part way through a run
+         */
+        private int readVarint(boolean endAllowed) throws IOException {
+            int value = 0;
+            for(int shift = 0; shift < 32; shift += 7) {
+                int b = input.read();
+                if(b < 0) {
+                    if(endAllowed && shift == 0) {
+                        return -1;
+                    }
+                    throw new EOFException("Tape ends part way through a run");
+                }
+                value |= (b & 0x7F) << shift;
+                if((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed number on tape");
+        }
+
+        /**
+         * Reads bytes from the tape
+         * @param destination Array to read into
+         * @param offset Offset in the array
+         * @param length Number of bytes
+         * @throws IOException If the tape ends first
+         */
+        private void readFully(byte[] destination, int offset, int length) throws IOException {
+            while(length > 0) {
+                int count = input.read(destination, offset, length);
+                if(count < 0) {
+                    throw new EOFException("Tape ends part way through a run");
+                }
+                offset += count;
+                length -= count;
+            }
+        }
+
+        /**
+         * Moves on to the next loaded chunk, waiting for it if it hasn't been loaded yet
+         * @return False if the tape has ended
+         * @throws IOException If loading failed
+         */
+        private boolean next() throws IOException {
+            synchronized(ForecastingReadAhead.this) {
+                if(current != null) {
+                    release(current.buffer);
+                    current = null;
+                }
+                schedule();
+                while(loaded.isEmpty() && !ended) {
+                    try {
+                        ForecastingReadAhead.this.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while reading ahead");
+                    }
+                }
+                if(failure != null) {
+                    throw failure;
+                }
+                if(loaded.isEmpty()) {
+                    return false;
+                }
+                current = loaded.poll();
+                runEndsAhead -= current.runEnds;
+                position = 0;
+                return true;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if((current == null || position == current.length) && !next()) {
+                return -1;
+            }
+            return current.buffer[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] destination, int offset, int length) throws IOException {
+            if(length == 0) {
+                return 0;
+            }
+            if((current == null || position == current.length) && !next()) {
+                return -1;
+            }
+            int count = Math.min(length, current.length - position);
+            System.arraycopy(current.buffer, position, destination, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return current == null ? 0 : current.length - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized(ForecastingReadAhead.this) {
+                closed = true;
+                // Let the load in flight finish before closing the stream under it
+                while(filling) {
+                    try {
+                        ForecastingReadAhead.this.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                if(current != null) {
+                    release(current.buffer);
+                    current = null;
+                }
+                for(Chunk chunk : loaded) {
+                    release(chunk.buffer);
+                }
+                loaded.clear();
+                tapes.remove(this);
+                schedule();
+            }
+            if(inflater != null) {
+                inflater.end();
+            }
+            input.close();
+        }
+    }
+}
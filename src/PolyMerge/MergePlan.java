@@ -0,0 +1,124 @@
+/**
+ * Order to merge runs in
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package PolyMerge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A tree of merges over runs of known sizes. The input runs are numbered from 0, and each step merges
+ * some runs into a new one numbered after all the runs before it, so step i makes run inputs + i.
+ * The last step makes the sorted output
+ */
+class MergePlan {
+    private final int inputs;
+    private final List<int[]> steps = new ArrayList<>();
+    private final List<Long> sizes = new ArrayList<>();
+    private long bytesWritten = 0;
+
+    /**
+     * Creates an empty plan
+     * @param runSizes Sizes of the input runs
+     */
+    private MergePlan(long[] runSizes) {
+        this.inputs = runSizes.length;
+        for(long size : runSizes) {
+            sizes.add(size);
+        }
+    }
+
+    /**
+     * Adds a step merging runs into a new run
+     * @param runs Runs to merge
+     * @return Index of the new run
+     */
+    private int addStep(int[] runs) {
+        long size = 0;
+        for(int run : runs) {
+            size += sizes.get(run);
+        }
+        steps.add(runs);
+        sizes.add(size);
+        bytesWritten += size;
+        return sizes.size() - 1;
+    }
+
+    /**
+     * Plans the merge that writes the fewest bytes for a fan in, like building a Huffman code: the smallest
+     * runs are merged first, so the big runs are rewritten as few times as possible.
+     * Only the first merge takes fewer than fanIn runs, just enough that every merge after it is full
+     * @param runSizes Sizes of the input runs
+     * @param fanIn Most runs merged at once
+     * @return The plan
+     */
+    static MergePlan huffman(long[] runSizes, int fanIn) {
+        MergePlan plan = new MergePlan(runSizes);
+        if(runSizes.length <= fanIn) {
+            // Everything fits in one merge, even no runs at all still gives an empty output
+            int[] all = new int[runSizes.length];
+            for(int i = 0; i < all.length; i++) {
+                all[i] = i;
+            }
+            plan.addStep(all);
+            return plan;
+        }
+
+        // Smallest run first, the older run on ties so the plan is the same every time
+        PriorityQueue<Integer> queue = new PriorityQueue<>((a, b) -> {
+            int bySize = Long.compare(plan.sizes.get(a), plan.sizes.get(b));
+            return bySize != 0 ? bySize : Integer.compare(a, b);
+        });
+        for(int i = 0; i < runSizes.length; i++) {
+            queue.add(i);
+        }
+        int width = 2 + (runSizes.length - 2) % (fanIn - 1);
+        while(queue.size() > 1) {
+            int[] runs = new int[Math.min(width, queue.size())];
+            for(int i = 0; i < runs.length; i++) {
+                runs[i] = queue.poll();
+            }
+            queue.add(plan.addStep(runs));
+            width = fanIn;
+        }
+        return plan;
+    }
+
+    /**
+     * Gets the number of input runs
+     * @return Number of runs
+     */
+    int getNumInputs() {
+        return inputs;
+    }
+
+    /**
+     * Gets the number of merges
+     * @return Number of steps
+     */
+    int getNumSteps() {
+        return steps.size();
+    }
+
+    /**
+     * Gets the runs a step merges
+     * @param step Index of the step
+     * @return Indices of the runs
+     */
+    int[] getStep(int step) {
+        return steps.get(step);
+    }
+
+    /**
+     * Gets the number of bytes the plan writes, counting the output
+     * @return Total size of every merged run
+     */
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+}
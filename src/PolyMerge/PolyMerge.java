@@ -8,16 +8,28 @@
 package PolyMerge;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.OpenOption;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 import java.nio.file.StandardOpenOption;
 
-import Heap.Heap;
+import Heap.LoserTree;
+import MakeRuns.RunManifest;
+import MakeRuns.RunRouter;
+import MakeRuns.TapeFormat;
 
 class PolyMerge {
 
@@ -35,7 +47,7 @@ class PolyMerge {
             try {
                 File file = new File("./PolyMerge_tmp_" + i + ".txt");
                 // Create file and clear contents
-                openAndClearFile(file);
+                openAndClearFile(file).close();
                 // Set the file to delete itself when program exits
                 file.deleteOnExit();
                 // Add to lists
@@ -49,14 +61,28 @@ class PolyMerge {
         return files;
     }
 
+    /**
+     * Opens a tape for writing in the format of the input runs
+     * @param file The file to open
+     * @param options How to open the file
+     * @return Writer that points at the file
+     * @throws IOException
+     */
+    private static TapeWriter openTapeWriter(File file, OpenOption... options) throws IOException {
+        if(binaryTapes) {
+            return new BinaryTapeWriter(new BufferedOutputStream(Files.newOutputStream(Paths.get(file.toURI()), options), bufferSize), compressTapes);
+        }
+        return new TextTapeWriter(Files.newOutputStream(Paths.get(file.toURI()), options), bufferSize);
+    }
+
     /**
      * Open file, clearing the content if it exists
      * @param file The file to open
      * @return Writer that points at the file
      * @throws IOException
      */
-    private static BufferedWriter openAndClearFile(File file) throws IOException {
-        return Files.newBufferedWriter(Paths.get(file.toURI()), StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.CREATE );
+    private static TapeWriter openAndClearFile(File file) throws IOException {
+        return openTapeWriter(file, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.CREATE );
     }
 
     /**
@@ -65,30 +91,90 @@ class PolyMerge {
      * @return Writer that points to the end of the file for writing
      * @throws IOException
      */
-    private static BufferedWriter openAppendFile(File file) throws IOException {
-        return Files.newBufferedWriter(Paths.get(file.toURI()), StandardOpenOption.APPEND, StandardOpenOption.WRITE, StandardOpenOption.CREATE );
+    private static TapeWriter openAppendFile(File file) throws IOException {
+        return openTapeWriter(file, StandardOpenOption.APPEND, StandardOpenOption.WRITE, StandardOpenOption.CREATE );
     }
 
     /**
      * Opens a file for reading
      * @param file File to open for reading
-     * @return BufferedReader for file
+     * @return TapeReader for file
      * @throws IOException
      */
-    private static BufferedReader openReadFile(File file) throws IOException {
-        return Files.newBufferedReader(Paths.get(file.toURI()));
+    private static TapeReader openReadFile(File file) throws IOException {
+        if(tapeReadAhead != null) {
+            InputStream input = tapeReadAhead.open(Files.newInputStream(Paths.get(file.toURI())), compressTapes);
+            // Blocks come out of the pool already inflated
+            return binaryTapes ? new BinaryTapeReader(input, bufferSize, false) : new TextTapeReader(input, bufferSize);
+        }
+        if(binaryTapes) {
+            return new BinaryTapeReader(openInputStream(file), bufferSize, compressTapes);
+        }
+        return new TextTapeReader(openInputStream(file), bufferSize);
+    }
+
+    /**
+     * Opens a stream to read a file, reading ahead in the background unless that is turned off
+     * @param file File to open for reading
+     * @return Stream for the file
+     * @throws IOException
+     */
+    private static InputStream openInputStream(File file) throws IOException {
+        InputStream input = Files.newInputStream(Paths.get(file.toURI()));
+        if(readAheadPool == null) {
+            return input;
+        }
+        return new ReadAheadInputStream(input, readAheadPool, readAheadSize);
     }
 
     private static String inputFile = "MakeRunsOutput.txt";
+    // Runs piped in on stdin, null when they are read from the input file
+    private static InputStream streamedInput = null;
+
+    // Runs are in the binary TapeFormat instead of text, temporary tapes use the same format
+    private static boolean binaryTapes = false;
+    // Deflate each block of the temporary tapes, always done when the input runs are compressed
+    private static boolean compressTapes = false;
+    // The blocks of the input runs are compressed
+    private static boolean inputCompressed = false;
+    // Size of the buffers for tapes
+    private final static int bufferSize = 1 << 16;
+    // File to write the sorted output to, null for stdout
+    private static String outputFile = null;
+    // Size of the buffer for the sorted output
+    private final static int outputBufferSize = 1 << 20;
+    // Size of each buffer files are read ahead into, 0 to read on the merge thread
+    private static int readAheadSize = 1 << 20;
+    // Number of buffers shared by the temporary files, 0 for one and a half per file
+    private static int readAheadBuffers = 0;
+    // Threads that read ahead, null if reading ahead is turned off
+    private static ExecutorService readAheadPool = null;
+    // Buffers the temporary files are read ahead into during the merge, null if reading ahead is turned off
+    private static ForecastingReadAhead tapeReadAhead = null;
+
+    // How the runs are merged
+    private final static String autoStrategy = "auto";
+    private final static String polyphaseStrategy = "polyphase";
+    private final static String balancedStrategy = "balanced";
+    private final static String optimalStrategy = "optimal";
+    private static String mergeStrategy = autoStrategy;
+    // Most runs the balanced merge merges at once, 0 to fit as many as memory allows
+    private static int fanIn = 0;
+    // Bytes written to temporary files and the output by the merge
+    private static long bytesWritten = 0;
+
+    // Order used to merge lines, must match the order MakeRuns generated the runs with
+    private static Comparator<RecordCursor> lineComparer = RecordCursor::compareBytes;
+    private static boolean numericKeys = false;
 
     /**
      * Opens the input file for reading
-     * @return BufferedReader for reading input file with
+     * @return TapeReader for reading input file with
      */
-    private static BufferedReader getInputFile() {
+    private static TapeReader getInputFile() {
         File file = new File(inputFile);
 
-        if(!file.exists()) {
+        if(streamedInput == null && !file.exists()) {
             // Didn't find matching file
             System.err.println("Could not find input runs to read.\nDid you run from the correct directory?");
             System.exit(1);
@@ -96,7 +182,13 @@ class PolyMerge {
 
         try {
             // Open file for reading
-            return openReadFile(file);
+            InputStream input = streamedInput != null ? streamedInput : openInputStream(file);
+            if(binaryTapes) {
+                // Only the input runs file starts with the header, temporary tapes don't have one
+                boolean compressed = TapeFormat.readHeader(input);
+                return new BinaryTapeReader(input, bufferSize, compressed);
+            }
+            return new TextTapeReader(input, bufferSize);
         } catch (IOException e) {
             System.err.println("Could not open input file for reading.");
             System.exit(1);
@@ -105,80 +197,46 @@ class PolyMerge {
         return null;
     }
 
-    private static int getNumRuns() throws IOException {
-        // Open input file
-        BufferedReader inputFile = getInputFile();
-
-        int runs = 0;
-        boolean newRun = true;
-        // Count the number of runs in the file so we can distribute correctly
-        while(inputFile.ready()) {
-            newRun = false;
-            // Read next line
-            String line = inputFile.readLine();
-            // Empty line means end of run
-            if(line.length() == 0) {
-                runs++;
-                newRun = true;
-            }
-        }
-        if(!newRun) {
-            // File didn't have newline at end
-            // Add one for final run
-            runs++;
+    /**
+     * Works out the format of runs piped in, leaving the stream at its start so the header is read again
+     * @param input Stream of the runs, which must support mark
+     * @throws IOException
+     */
+    private static void detectStreamFormat(InputStream input) throws IOException {
+        input.mark(TapeFormat.getHeaderLength());
+        try {
+            inputCompressed = TapeFormat.readHeader(input);
+            binaryTapes = true;
+        } catch (IOException e) {
+            // No binary header, so text runs
         }
-
-        inputFile.close();
-
-        return runs;
+        input.reset();
     }
 
     /**
-     * Calculates the distribution for the runs across the temporary files
-     * @param numFiles Number of temporary files used
-     * @param numRuns Number of runs to distribute
-     * @return The distribution that provides optimal performance for the given number of runs
+     * Reads the manifest MakeRuns wrote next to the input file
+     * @return The manifest, or null if there is no up to date manifest
      */
-    private static int[] calcDistribution(int numFiles, int numRuns) {
-        int inputFiles = numFiles - 1;
-        int[] state = new int[inputFiles];
-
-        int sum = inputFiles;
-        // Init to ones
-        for(int i = 0; i < inputFiles; i++){
-            state[ i ] = 1;
-        }
-
-        // Generates perfect ditribution of runs
-        // See: http://citeseerx.ist.psu.edu/viewdoc/download?doi=10.1.1.441.2825&rep=rep1&type=pdf
-        while ( sum <= numRuns ) {
-            // Get largest value. This will be the smallest value on the prior iteration
-            int largest = state[ inputFiles - 1 ];
-            sum = largest;
-            // Loop for all files except the first
-            for(int i = inputFiles - 1; i >= 1; i--) {
-                // Calculate the next number for ith input
-                state[i] = state[i-1] + largest;
-                // Increase sum
-                sum += state[i];
-            }
-            // Set state
-            state[0] = largest;
-        }
-
-        // Sort array so largest is second to last
-        Arrays.sort(state);
-        return state;
+    private static RunManifest getManifest() {
+        try {
+            return RunManifest.read(inputFile);
+        } catch (IOException e) {
+            System.err.println("Could not read run manifest, counting runs instead.\n\n" + e.getMessage());
+            return null;
+        }
     }
 
     /**
-     * Loads the input runs into the temporary files in the optimal distribution, leaving the last file empty
+     * Loads the input runs into the temporary files as they are read, leaving the last file empty.
+     * Runs are placed by a horizontal distribution, so the number of runs doesn't need to be known and the
+     * input can be streamed. Only real runs are written, the dummy runs padding out the distribution are just counted
      * @param outputFiles The list of temporary files to output to
+     * @return Where the runs went
      */
-    private static void loadInputFiles(List<File> outputFiles, int runs) {
+    private static PolyphaseDistribution loadInputFiles(List<File> outputFiles) {
         try {
             // Get input file
-            BufferedReader inputFile = getInputFile();
+            TapeReader inputFile = getInputFile();
 
             // Check input file is not null
             if(inputFile == null) {
@@ -186,193 +244,618 @@ class PolyMerge {
                 System.exit(1);
             }
 
-            if(runs == -1) {
-                // Calculate number of runs
-                runs = getNumRuns();
-                System.out.println("For " + runs + " runs");
-            }
-
-            // Get distribution of runs
-            int[] distribution = calcDistribution(outputFiles.size(), runs);
-
-            // Start outputting to the first file
-            int outputIndex = 0;
-            // Get the first temp file
-            BufferedWriter writer = openAppendFile(outputFiles.get(outputIndex));
-            // Loop while there is still data
-            while(inputFile.ready()) {
-                // Read next line
-                String line = inputFile.readLine();
-                // Write line to output file
-                writer.write(line + "\n");
-                // Empty line means end of run
-                // Decrement number of runs needed to distribute
-                if(line.length() == 0 && --distribution[outputIndex] == 0) {
-                    // Close writer
-                    writer.close();
-                    // Open next writer
-                    writer = openAppendFile(outputFiles.get(++outputIndex));
-                }
+            PolyphaseDistribution distribution = new PolyphaseDistribution(outputFiles.size());
+            RecordCursor record = new RecordCursor();
+            // Any input file can take the next run, so they are all open at once
+            TapeWriter[] writers = new TapeWriter[outputFiles.size() - 1];
+            for(int i = 0; i < writers.length; i++) {
+                writers[i] = openAppendFile(outputFiles.get(i));
             }
 
-            // Fill out remaining distributions with empty runs
-            while (outputIndex < outputFiles.size() - 1) {
-                // Write empty run
-                writer.write("\n");
-                // Check if enough runs have been processed
-                if(--distribution[outputIndex] == 0) {
-                    // Close writer
-                    writer.close();
-                    // Open next writer
-                    writer = openAppendFile(outputFiles.get(++outputIndex));
+            while(inputFile.hasMoreRuns()) {
+                TapeWriter writer = writers[distribution.nextTape()];
+                while(inputFile.readRecord(record)) {
+                    writer.writeRecord(record);
                 }
+                writer.endRun();
             }
 
-            // Close final writer
-            writer.close();
+            for(TapeWriter writer : writers) {
+                bytesWritten += writer.getPosition();
+                writer.close();
+            }
             // Close input file reader
             inputFile.close();
+            return distribution;
 
         } catch (IOException e) {
             System.err.println("Error while loading input files.\n\n" + e.getMessage());
             System.exit(1);
         }
+        return null;
     }
 
-    private static class HeapEntry {
-        private String string;
-        private int fileIndex;
-
-        public String getString() {
-            return string;
+    /**
+     * Loads the input runs into the temporary files like loadInputFiles, but copies each run as a range of
+     * bytes between the files with FileChannel.transferTo, so the kernel moves them without them being
+     * decoded or passing through the heap. The input runs must already be in the format of the temporary files
+     * @param outputFiles The list of temporary files to output to
+     * @param boundaries Boundaries of the runs in the input file
+     * @return Where the runs went
+     */
+    private static PolyphaseDistribution transferInputFiles(List<File> outputFiles, long[] boundaries) {
+        PolyphaseDistribution distribution = new PolyphaseDistribution(outputFiles.size());
+        FileChannel[] tapes = new FileChannel[outputFiles.size() - 1];
+        try(FileChannel input = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ)) {
+            for(int i = 0; i < tapes.length; i++) {
+                tapes[i] = FileChannel.open(outputFiles.get(i).toPath(), StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+            }
+            int tape = -1;
+            for(int run = 0; run + 1 < boundaries.length; run++) {
+                tape = distribution.nextTape();
+                long position = boundaries[run];
+                while(position < boundaries[run + 1]) {
+                    long count = input.transferTo(position, boundaries[run + 1] - position, tapes[tape]);
+                    if(count <= 0) {
+                        throw new EOFException("Input file ends part way through a run");
+                    }
+                    position += count;
+                }
+                bytesWritten += boundaries[run + 1] - boundaries[run];
+            }
+            if(!binaryTapes && tape >= 0) {
+                // A text file can end part way through its last run, so end the run on the tape
+                bytesWritten += tapes[tape].write(ByteBuffer.wrap(getTextRunEnding(input, boundaries[boundaries.length - 2], boundaries[boundaries.length - 1])));
+            }
+        } catch (IOException e) {
+            System.err.println("Error while loading input files.\n\n" + e.getMessage());
+            System.exit(1);
+        } finally {
+            for(FileChannel tape : tapes) {
+                try {
+                    if(tape != null) {
+                        tape.close();
+                    }
+                } catch (IOException e) {
+                    // Nothing was left unwritten, writes to a channel aren't buffered
+                }
+            }
         }
+        return distribution;
+    }
 
-        public int getFileIndex() {
-            return fileIndex;
+    /**
+     * Works out what is missing from the end of the last text run
+     * @param input The input file
+     * @param start Offset of the last run
+     * @param end Offset after the last run
+     * @return Bytes that end the run, empty if it is already ended by an empty line
+     * @throws IOException
+     */
+    private static byte[] getTextRunEnding(FileChannel input, long start, long end) throws IOException {
+        ByteBuffer last = ByteBuffer.allocate(2);
+        long from = Math.max(start, end - 2);
+        while(last.position() < end - from && input.read(last, from + last.position()) > 0) { }
+        last.flip();
+        if(last.remaining() == 0 || last.get(last.limit() - 1) != '\n') {
+            // The last line has no new line either
+            return new byte[] {'\n', '\n'};
         }
-
-        public HeapEntry(String _string, int _fileIndex) {
-            string = _string;
-            fileIndex = _fileIndex;
+        // An empty run is just its empty line
+        if(last.remaining() == 1 || last.get(0) == '\n') {
+            return new byte[0];
         }
+        return new byte[] {'\n'};
     }
 
     /**
-     * Loads first entry of next run into memory
+     * Loads first entry of next run into memory. Dummy runs are used up before real ones
      * @param files The temporary files we are using
      * @param inputReaders The input readers for current input arrays
-     * @param lastEntryHeap The heap containing the entries
+     * @param dummyRuns Number of dummy runs left in each file
+     * @param cursors The cursor for each file
+     * @param lastEntryTree The loser tree containing the entries, one leaf per file
      * @param outputIndex The current output index
+     * @return False if every input file had a dummy run, so nothing needs merging
      * @throws IOException
      */
-    private static void loadNewRun(List<File> files, BufferedReader[] inputReaders, Heap<HeapEntry> lastEntryHeap, int outputIndex) throws IOException {
-        if(lastEntryHeap.getHeapSize() != 0 ) {
+    private static boolean loadNewRun(List<File> files, TapeReader[] inputReaders, int[] dummyRuns, RecordCursor[] cursors, LoserTree<RecordCursor> lastEntryTree, int outputIndex) throws IOException {
+        if(lastEntryTree.getTreeSize() != 0 ) {
             System.err.println("Unprocessed items were about to be overwritten");
             System.exit(1);
         }
+        boolean realRuns = false;
         for(int i = 0; i < files.size(); i++) {
             if(i == outputIndex) {
-                // Close old input if changed
-                if(inputReaders[i] != null) {
-                    inputReaders[i].close();
-                }
-                inputReaders[i] = null;
+                // Output file takes no part in the merge
+                lastEntryTree.set(i, null);
+                continue;
+            }
+            if(inputReaders[i] == null) {
+                // Open file if null
+                inputReaders[i] = openReadFile(files.get(i));
+            }
+            if(dummyRuns[i] > 0) {
+                // Dummy runs are empty, leave the leaf empty
+                dummyRuns[i]--;
+                lastEntryTree.set(i, null);
             } else {
-                if(inputReaders[i] == null) {
-                    // Open file if null
-                    inputReaders[i] = openReadFile(files.get(i));
-                }
                 // Read next entry
-                String line = inputReaders[i].readLine();
-                if(line.length() > 0) {
-                    lastEntryHeap.insert(new HeapEntry(line, i));
-                }
+                // No entry means the file has an empty run, leave its leaf empty
+                lastEntryTree.set(i, inputReaders[i].readRecord(cursors[i]) ? cursors[i] : null);
+                realRuns = true;
             }
         }
+        // Play the first round of the tournament
+        lastEntryTree.rebuild();
+        return realRuns;
+    }
+
+    /**
+     * Opens the output for the sorted records
+     * @return Writer for the final merge
+     * @throws IOException
+     */
+    private static TapeWriter openSortedOutput() throws IOException {
+        WritableByteChannel channel;
+        if(outputFile == null) {
+            // Anything already printed has to come first
+            System.out.flush();
+            channel = Channels.newChannel(new FileOutputStream(FileDescriptor.out));
+        } else {
+            channel = FileChannel.open(Paths.get(outputFile), StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        }
+        return new SortedOutputWriter(channel, outputBufferSize);
     }
 
     /**
-     * Runs the polyphase merge on the specified files
+     * Runs the polyphase merge on the specified files. The final merge writes straight to the output
      * @param files The temporary working files
+     * @param runCounts Number of runs in each file, real and dummy
+     * @param dummyRuns Number of dummy runs in each file
      */
-    private static void runPolyphaseMerge(List<File> files) {
+    private static void runPolyphaseMerge(List<File> files, int[] runCounts, int[] dummyRuns) {
         // Last file is first output file
         int numFiles = files.size();
         int outputIndex = numFiles - 1;
         int numIterations = 0;
-        Heap<HeapEntry> lastEntryHeap = new Heap<>(new HeapEntry[numFiles], Comparator.comparing(HeapEntry::getString));
-        BufferedReader[] inputReaders = new BufferedReader[numFiles];
+        // Each file has one cursor that is loaded with its records in turn, so merging allocates nothing
+        RecordCursor[] cursors = new RecordCursor[numFiles];
+        for(int i = 0; i < numFiles; i++) {
+            cursors[i] = new RecordCursor();
+        }
+        LoserTree<RecordCursor> lastEntryTree = new LoserTree<>(new RecordCursor[numFiles], lineComparer);
+        TapeReader[] inputReaders = new TapeReader[numFiles];
         try {
             // Get next output run
             // The perfect distribution calculation means that this will always be the next file along
             int nextOutput = (outputIndex + 1) % numFiles;
             // Loop while there are runs remaining to process
             do {
-                // Load first run
-                loadNewRun(files, inputReaders, lastEntryHeap, outputIndex);
+                // Close old input if changed
+                if(inputReaders[outputIndex] != null) {
+                    inputReaders[outputIndex].close();
+                    inputReaders[outputIndex] = null;
+                }
+                // Loop until next file runs out of runs
+                int merges = runCounts[nextOutput];
+                // When every file is down to its last run this is the final merge, so write the sorted output instead of a file
+                boolean finalMerge = true;
+                for(int i = 0; i < numFiles; i++) {
+                    if(i != outputIndex && runCounts[i] != 1) {
+                        finalMerge = false;
+                    }
+                }
                 // Open new file for outputting
-                BufferedWriter output = openAndClearFile(files.get(outputIndex));
+                TapeWriter output = finalMerge ? openSortedOutput() : openAndClearFile(files.get(outputIndex));
 
-                // Loop until next file runs out of runs
-                while (true) {
-                    if(lastEntryHeap.getHeapSize() == 0) {
-                        // All files have reached the end of their runs
-                        // Write new line to signify run end in output file
-                        output.write("\n");
-                        if(!inputReaders[nextOutput].ready()) {
-                            // Completed all runs for this iteration
-                            // Switch output files
-                            break;
-                        }
-                        // Process next run
-                        loadNewRun(files, inputReaders, lastEntryHeap, outputIndex);
-                    } else {
+                for(int merge = 0; merge < merges; merge++) {
+                    // Process next run
+                    if(!loadNewRun(files, inputReaders, dummyRuns, cursors, lastEntryTree, outputIndex)) {
+                        // Merging dummy runs only gives a dummy run, which costs nothing to write
+                        dummyRuns[outputIndex]++;
+                        continue;
+                    }
+                    while(lastEntryTree.getTreeSize() != 0) {
                         // Load next element in the run
-                        HeapEntry smallest = lastEntryHeap.peek();
-                        output.write(smallest.getString() + "\n");
-                        String nextLine = inputReaders[smallest.getFileIndex()].readLine();
-                        if(nextLine.length() == 0) {
-                            // Remove element from heap
-                            lastEntryHeap.remove(false);
+                        RecordCursor smallest = lastEntryTree.peek();
+                        output.writeRecord(smallest);
+                        if(inputReaders[lastEntryTree.peekIndex()].readRecord(smallest)) {
+                            // Cursor now holds the next line from the same file, replay its matches
+                            lastEntryTree.replace(smallest);
                         } else {
-                            // Replace element with nex line from file
-                            lastEntryHeap.replace(new HeapEntry(nextLine, smallest.getFileIndex()));
+                            // Run has finished, leave the leaf empty
+                            lastEntryTree.remove();
                         }
                     }
+                    // All files have reached the end of their runs
+                    // Signify run end in output file
+                    output.endRun();
+                }
+                // Completed all runs for this iteration, the next file is now empty
+                for(int i = 0; i < numFiles; i++) {
+                    runCounts[i] += i == outputIndex ? merges : -merges;
                 }
 
                 // Number of iterations it took to complete read
                 numIterations++;
                 outputIndex = nextOutput;
                 nextOutput = (outputIndex + 1) % numFiles;
+                bytesWritten += output.getPosition();
                 output.close();
-            } while (inputReaders[nextOutput].ready());
+            } while (runCounts[nextOutput] > 0);
 
             // Merged all runs
-            // Get output file
-            outputIndex = ( outputIndex + numFiles - 1 ) % numFiles;
-            BufferedReader reader = openReadFile(files.get(outputIndex));
-            while (reader.ready()) {
-                String line = reader.readLine();
-                if(line.length() != 0) {
-                    System.out.println(line.substring(1));
+            for(TapeReader reader : inputReaders) {
+                if(reader != null) {
+                    reader.close();
                 }
             }
 //            System.out.println("Required: " + numIterations + " polyphase merge iterations to sort output");
-            System.err.println(numIterations);
+            System.err.println("Polyphase merge: " + numIterations + (numIterations == 1 ? " phase, " : " phases, ") + bytesWritten + " bytes written");
         } catch (IOException e) {
             System.err.println("Error while running polyphase merge.\n\n" + e.getMessage());
             System.exit(1);
         }
     }
 
+    /**
+     * Works out how many runs the multiway merges can merge at once. There is no point merging more runs
+     * at once than there are, and every run merged at once gets buffers, so the fan in is kept to the runs
+     * @param runs Number of runs to merge
+     * @return The fan in
+     */
+    private static int getFanIn(int runs) {
+        long limit = fanIn;
+        if(limit == 0) {
+            // Each run being merged needs its read buffer, a block for binary runs, and its share of the read ahead buffers
+            long perRun = bufferSize * (binaryTapes ? 2L : 1L);
+            if(readAheadSize > 0) {
+                perRun += readAheadSize * 3L / 2 + bufferSize;
+            }
+            // Leave half the heap for everything else
+            limit = Math.min(Runtime.getRuntime().maxMemory() / 2 / perRun, 1 << 16);
+        }
+        return (int) Math.max(2, Math.min(limit, runs));
+    }
+
+    /**
+     * Gets the size of each run
+     * @param boundaries Boundaries of the runs
+     * @return Size of each run in bytes
+     */
+    private static long[] getRunSizes(long[] boundaries) {
+        long[] sizes = new long[boundaries.length - 1];
+        for(int i = 0; i < sizes.length; i++) {
+            sizes[i] = boundaries[i + 1] - boundaries[i];
+        }
+        return sizes;
+    }
+
+    /**
+     * Estimates how much the polyphase merge writes by playing it through, with the runs distributed
+     * in order as loadInputFiles does
+     * @param numFiles Number of temporary files
+     * @param sizes Size of each run
+     * @return Amount of data written, including distributing the runs and the output
+     */
+    private static long estimatePolyphaseWrites(int numFiles, long[] sizes) {
+        // Each file holds the sizes of its runs
+        List<ArrayDeque<Long>> tapes = new ArrayList<>();
+        for(int i = 0; i < numFiles; i++) {
+            tapes.add(new ArrayDeque<>());
+        }
+        PolyphaseDistribution distribution = new PolyphaseDistribution(numFiles);
+        long written = 0;
+        for(long size : sizes) {
+            tapes.get(distribution.nextTape()).add(size);
+            written += size;
+        }
+        // Dummy runs are used up first
+        int[] dummies = distribution.getDummyRuns();
+        for(int i = 0; i < numFiles; i++) {
+            for(int run = 0; run < dummies[i]; run++) {
+                tapes.get(i).addFirst(0L);
+            }
+        }
+        int outputIndex = numFiles - 1;
+        int nextOutput = 0;
+        do {
+            int merges = tapes.get(nextOutput).size();
+            for(int merge = 0; merge < merges; merge++) {
+                long merged = 0;
+                for(int i = 0; i < numFiles; i++) {
+                    Long run = i == outputIndex ? null : tapes.get(i).poll();
+                    merged += run == null ? 0 : run;
+                }
+                // Dummy runs made by merging dummy runs are used up first, like in runPolyphaseMerge
+                if(merged == 0) {
+                    tapes.get(outputIndex).addFirst(merged);
+                } else {
+                    tapes.get(outputIndex).addLast(merged);
+                }
+                written += merged;
+            }
+            outputIndex = nextOutput;
+            nextOutput = (outputIndex + 1) % numFiles;
+        } while(!tapes.get(nextOutput).isEmpty());
+        return written;
+    }
+
+    /**
+     * Finds the runs in the input file by scanning it
+     * @return Boundaries of the runs
+     */
+    private static long[] scanRunBoundaries() {
+        if(!new File(inputFile).exists()) {
+            System.err.println("Could not find input runs to read.\nDid you run from the correct directory?");
+            System.exit(1);
+        }
+        try {
+            return RunBoundaries.scan(Paths.get(inputFile), binaryTapes, inputCompressed);
+        } catch (IOException e) {
+            System.err.println("Error while finding runs in input file.\n\n" + e.getMessage());
+            System.exit(1);
+        }
+        return null;
+    }
+
+    /**
+     * Opens a run to read in place from a file
+     * @param channel File holding the run
+     * @param start Offset of the run
+     * @param end Offset after the run
+     * @param compressed True if the blocks of a binary run are compressed
+     * @param readAhead Buffers to read the run ahead into, null to read on the merge thread
+     * @return Reader for the run
+     */
+    private static TapeReader openRun(FileChannel channel, long start, long end, boolean compressed, ForecastingReadAhead readAhead) {
+        InputStream input = new FileRangeInputStream(channel, start, end);
+        if(readAhead != null) {
+            // Blocks come out of the pool already inflated
+            input = readAhead.open(input, compressed);
+            compressed = false;
+        }
+        return binaryTapes ? new BinaryTapeReader(input, bufferSize, compressed) : new TextTapeReader(input, bufferSize);
+    }
+
+    /**
+     * Merges runs into one and closes them
+     * @param readers Readers for the runs
+     * @param cursors A cursor for each run
+     * @param output Writer for the merged run, which is ended
+     * @throws IOException
+     */
+    private static void mergeRuns(TapeReader[] readers, RecordCursor[] cursors, TapeWriter output) throws IOException {
+        LoserTree<RecordCursor> tree = new LoserTree<>(new RecordCursor[readers.length], lineComparer);
+        for(int i = 0; i < readers.length; i++) {
+            tree.set(i, readers[i].readRecord(cursors[i]) ? cursors[i] : null);
+        }
+        tree.rebuild();
+        while(tree.getTreeSize() != 0) {
+            RecordCursor smallest = tree.peek();
+            output.writeRecord(smallest);
+            if(readers[tree.peekIndex()].readRecord(smallest)) {
+                tree.replace(smallest);
+            } else {
+                tree.remove();
+            }
+        }
+        output.endRun();
+        for(TapeReader reader : readers) {
+            reader.close();
+        }
+    }
+
+    /**
+     * Creates the cursors for a multiway merge
+     * @param fanIn Most runs merged at once
+     * @return The cursors
+     */
+    private static RecordCursor[] makeCursors(int fanIn) {
+        RecordCursor[] cursors = new RecordCursor[fanIn];
+        for(int i = 0; i < fanIn; i++) {
+            cursors[i] = new RecordCursor();
+        }
+        return cursors;
+    }
+
+    /**
+     * Creates the read ahead buffers for a multiway merge
+     * @param fanIn Most runs merged at once
+     * @param runs Number of runs to merge, the buffers are only made for as many runs as are read at once
+     * @return The buffers, null if reading ahead is turned off
+     */
+    private static ForecastingReadAhead makeMergeReadAhead(int fanIn, int runs) {
+        if(readAheadPool == null) {
+            return null;
+        }
+        int open = Math.max(1, Math.min(fanIn, runs));
+        return new ForecastingReadAhead(readAheadPool, open, open + open / 2, readAheadSize, binaryTapes, lineComparer);
+    }
+
+    /**
+     * Runs a balanced multiway merge, merging groups of up to fanIn runs a pass until one run is left.
+     * Runs are read in place, the first pass straight from the input file, so nothing is copied before
+     * merging. Each pass writes the data once and the last pass writes straight to the output
+     * @param files Two temporary files the passes take turns writing to
+     * @param boundaries Boundaries of the runs in the input file
+     * @param fanIn Most runs merged at once
+     */
+    private static void runBalancedMerge(List<File> files, long[] boundaries, int fanIn) {
+        File source = new File(inputFile);
+        boolean compressed = inputCompressed;
+        int outputIndex = 0;
+        int passes = 0;
+        RecordCursor[] cursors = makeCursors(fanIn);
+        try {
+            while(true) {
+                int runs = boundaries.length - 1;
+                boolean finalPass = runs <= fanIn;
+                // Later passes have fewer runs, so they get fewer buffers
+                ForecastingReadAhead readAhead = makeMergeReadAhead(fanIn, runs);
+                TapeWriter output = finalPass ? openSortedOutput() : openAndClearFile(files.get(outputIndex));
+                long[] merged = new long[(runs + fanIn - 1) / fanIn + 1];
+                // Every run of the pass is read through the one open file
+                try(FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                    for(int group = 0; group * fanIn < runs; group++) {
+                        TapeReader[] readers = new TapeReader[Math.min(fanIn, runs - group * fanIn)];
+                        for(int i = 0; i < readers.length; i++) {
+                            int run = group * fanIn + i;
+                            readers[i] = openRun(channel, boundaries[run], boundaries[run + 1], compressed, readAhead);
+                        }
+                        mergeRuns(readers, cursors, output);
+                        merged[group + 1] = output.getPosition();
+                    }
+                }
+                bytesWritten += output.getPosition();
+                output.close();
+                passes++;
+                if(finalPass) {
+                    break;
+                }
+                // Temporary files have no header, so the merged runs start at 0
+                source = files.get(outputIndex);
+                compressed = compressTapes;
+                boundaries = merged;
+                outputIndex = 1 - outputIndex;
+            }
+            System.err.println("Balanced merge: " + passes + (passes == 1 ? " pass, " : " passes, ") + bytesWritten + " bytes written");
+        } catch (IOException e) {
+            System.err.println("Error while running balanced merge.\n\n" + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the merge MergePlan.huffman plans from the sizes of the runs, so the fewest bytes are rewritten.
+     * Runs are read in place, and every merge but the last appends its run to one temporary file that is
+     * read in place as well
+     * @param file Temporary file for the merged runs
+     * @param boundaries Boundaries of the runs in the input file
+     * @param fanIn Most runs merged at once
+     */
+    private static void runOptimalMerge(File file, long[] boundaries, int fanIn) {
+        MergePlan plan = MergePlan.huffman(getRunSizes(boundaries), fanIn);
+        int inputs = plan.getNumInputs();
+        // Input runs are in the input file and merged runs in the temporary file
+        long[] starts = new long[inputs + plan.getNumSteps()];
+        long[] ends = new long[starts.length];
+        System.arraycopy(boundaries, 0, starts, 0, inputs);
+        System.arraycopy(boundaries, 1, ends, 0, inputs);
+        RecordCursor[] cursors = makeCursors(fanIn);
+        ForecastingReadAhead readAhead = makeMergeReadAhead(fanIn, inputs);
+        try(FileChannel input = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ);
+            FileChannel merged = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long mergedLength = 0;
+            for(int step = 0; step < plan.getNumSteps(); step++) {
+                int[] runs = plan.getStep(step);
+                TapeReader[] readers = new TapeReader[runs.length];
+                for(int i = 0; i < runs.length; i++) {
+                    int run = runs[i];
+                    readers[i] = run < inputs ? openRun(input, starts[run], ends[run], inputCompressed, readAhead)
+                            : openRun(merged, starts[run], ends[run], compressTapes, readAhead);
+                }
+                boolean last = step == plan.getNumSteps() - 1;
+                TapeWriter output = last ? openSortedOutput() : openAppendFile(file);
+                mergeRuns(readers, cursors, output);
+                starts[inputs + step] = mergedLength;
+                mergedLength += output.getPosition();
+                ends[inputs + step] = mergedLength;
+                bytesWritten += output.getPosition();
+                output.close();
+            }
+            System.err.println("Optimal merge: " + plan.getNumSteps() + (plan.getNumSteps() == 1 ? " merge, " : " merges, ") + bytesWritten + " bytes written");
+        } catch (IOException e) {
+            System.err.println("Error while running optimal merge.\n\n" + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Applies an option given on the command line
+     * @param arg The option
+     * @return False if it isn't a merge option
+     */
+    static boolean parseOption(String arg) {
+        if (arg.equals("--numeric")) {
+            numericKeys = true;
+            lineComparer = RecordCursor::compareNumeric;
+        } else if (arg.equals("--compress")) {
+            compressTapes = true;
+        } else if (arg.startsWith("--read-ahead=")) {
+            try {
+                readAheadSize = Integer.parseInt(arg.substring("--read-ahead=".length()));
+            } catch (NumberFormatException e) {
+                readAheadSize = -1;
+            }
+            if(readAheadSize < 0) {
+                System.err.println("Read ahead must be a number of bytes, 0 to turn it off");
+                System.exit(1);
+            }
+        } else if (arg.startsWith("--read-ahead-buffers=")) {
+            try {
+                readAheadBuffers = Integer.parseInt(arg.substring("--read-ahead-buffers=".length()));
+            } catch (NumberFormatException e) {
+                readAheadBuffers = -1;
+            }
+            if(readAheadBuffers <= 0) {
+                System.err.println("Read ahead buffers must be a positive number");
+                System.exit(1);
+            }
+        } else if (arg.startsWith("--merge=")) {
+            mergeStrategy = arg.substring("--merge=".length());
+            if(!mergeStrategy.equals(autoStrategy) && !mergeStrategy.equals(polyphaseStrategy) && !mergeStrategy.equals(balancedStrategy)
+                    && !mergeStrategy.equals(optimalStrategy)) {
+                System.err.println("Merge must be auto, polyphase, balanced or optimal");
+                System.exit(1);
+            }
+        } else if (arg.startsWith("--fan-in=")) {
+            try {
+                fanIn = Integer.parseInt(arg.substring("--fan-in=".length()));
+            } catch (NumberFormatException e) {
+                fanIn = -1;
+            }
+            if(fanIn < 2) {
+                System.err.println("Fan in must be a number of runs, at least 2");
+                System.exit(1);
+            }
+        } else if (arg.startsWith("--output=")) {
+            outputFile = arg.substring("--output=".length());
+        } else {
+            return false;
+        }
+        return true;
+    }
+
     public static void main (String[] args) {
+        // Split options from positional arguments
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (parseOption(arg)) {
+                continue;
+            }
+            if (arg.startsWith("--")) {
+                System.err.println("Unknown option `" + arg + "`");
+                System.exit(1);
+            }
+            positional.add(arg);
+        }
+        args = positional.toArray(new String[0]);
+
         // Check input args
         if(args.length != 3) {
-            System.err.println("Usage: java PolyMerge <number of files> <number of runs> <input file>\n" +
+            System.err.println("Usage: java PolyMerge [--numeric] [--compress] [--output=<file>] [--read-ahead=<bytes>] [--read-ahead-buffers=<n>] [--merge=auto|polyphase|balanced|optimal] [--fan-in=<n>] <number of files> <number of runs> <input file>\n" +
                     "\tNumber of files: The number of temporary files to use\n" +
                     "\tNumber of runs: The number of runs in the input file. -1 if this should be calculated internally\n" +
-                    "\tInput file: The input file to use as the input runs");
+                    "\tInput file: The input file to use as the input runs, - for stdin, which is merged with polyphase\n" +
+                    "\t--numeric: Merge runs made by MakeRuns --numeric\n" +
+                    "\t--compress: Compress the temporary files, binary runs only\n" +
+                    "\t--output: File to write the sorted output to instead of stdout\n" +
+                    "\t--read-ahead: Size of the buffers files are read ahead into, 0 to turn off\n" +
+                    "\t--read-ahead-buffers: Number of buffers shared by the temporary files, at least the number of files\n" +
+                    "\t--merge: Merge with a polyphase merge, a balanced multiway merge, a multiway merge planned from the run sizes, or whichever writes less (default auto)\n" +
+                    "\t--fan-in: Most runs the multiway merges merge at once, fitted to memory by default");
             System.exit(1);
         }
 
@@ -405,14 +888,189 @@ class PolyMerge {
             System.exit(1);
         }
 
-        inputFile = args[2];
+        sortRuns(numFiles, numRuns, args[2], null);
+    }
+
+    /**
+     * Checks the options against the format of the runs and starts the read ahead threads
+     * @param numFiles Number of temporary files for the polyphase merge
+     */
+    private static void setUpMerge(int numFiles) {
+        if(binaryTapes && numericKeys) {
+            System.err.println("--numeric can't be used with binary runs");
+            System.exit(1);
+        }
+        if(compressTapes && !binaryTapes) {
+            System.err.println("--compress needs binary runs from MakeRuns --format=binary");
+            System.exit(1);
+        }
 
-        // Create temporary files
-        List<File> files = getTemporaryOutputFiles( numFiles );
-        // Load input into output files
-        loadInputFiles( files, numRuns );
+        if(readAheadSize > 0) {
+            // Every polyphase file can have a read in flight at once, the multiway merges queue their reads on
+            // the same threads. Daemon threads don't hold up exiting
+            readAheadPool = Executors.newFixedThreadPool(numFiles, runnable -> {
+                Thread thread = new Thread(runnable, "PolyMerge read ahead");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // One buffer for each file being read, the rest go to whichever file will run out first
+            if(readAheadBuffers == 0) {
+                readAheadBuffers = numFiles + numFiles / 2;
+            } else if(readAheadBuffers < numFiles) {
+                System.err.println("Read ahead needs at least one buffer per file");
+                System.exit(1);
+            }
+            // All files but the output are read at once
+            tapeReadAhead = new ForecastingReadAhead(readAheadPool, numFiles - 1, readAheadBuffers, readAheadSize, binaryTapes, lineComparer);
+        }
+    }
 
-        // Merge the files
-        runPolyphaseMerge(files);
+    /**
+     * Checks if the polyphase merge was asked for
+     * @return True if --merge=polyphase was given
+     */
+    static boolean isPolyphaseMerge() {
+        return mergeStrategy.equals(polyphaseStrategy);
+    }
+
+    /**
+     * Merges runs made in the same process with the polyphase merge. Each run is written straight onto the
+     * temporary file the online distribution picks for it as it is made, so there is no runs file to write
+     * and then distribute
+     * @param numFiles Number of temporary files
+     * @param binary True if the runs are made in the binary TapeFormat
+     * @param compressed True if their blocks are compressed
+     * @param generator Makes the runs, asking the router it is given for the stream of each
+     */
+    static void sortGeneratedRuns(int numFiles, boolean binary, boolean compressed, Consumer<RunRouter> generator) {
+        // The runs are written as the temporary files, so those take their format
+        binaryTapes = binary;
+        compressTapes = compressed;
+        setUpMerge(numFiles);
+
+        List<File> files = getTemporaryOutputFiles(numFiles);
+        PolyphaseDistribution distribution = new PolyphaseDistribution(numFiles);
+        OutputStream[] tapes = new OutputStream[numFiles - 1];
+        try {
+            for(int i = 0; i < tapes.length; i++) {
+                tapes[i] = new BufferedOutputStream(Files.newOutputStream(files.get(i).toPath(), StandardOpenOption.APPEND, StandardOpenOption.WRITE), bufferSize);
+            }
+            generator.accept(() -> tapes[distribution.nextTape()]);
+            for(int i = 0; i < tapes.length; i++) {
+                tapes[i].close();
+                bytesWritten += files.get(i).length();
+            }
+        } catch (IOException e) {
+            System.err.println("Error while writing runs to temporary files.\n\n" + e.getMessage());
+            System.exit(1);
+        }
+        System.err.println("For " + distribution.getNumRuns() + (distribution.getNumRuns() == 1 ? " run" : " runs"));
+
+        runPolyphaseMerge(files, distribution.getRunCounts(), distribution.getDummyRuns());
+        if(readAheadPool != null) {
+            readAheadPool.shutdown();
+        }
+    }
+
+    /**
+     * Merges a runs file into the sorted output, once the options have been applied
+     * @param numFiles Number of temporary files for the polyphase merge
+     * @param numRuns Number of runs in the file, -1 to find out
+     * @param runsFile Path to the runs file, - for stdin
+     * @param runBoundaries Boundaries of the runs if they are already known, otherwise null
+     */
+    static void sortRuns(int numFiles, int numRuns, String runsFile, long[] runBoundaries) {
+        inputFile = runsFile;
+        boolean streamed = inputFile.equals("-");
+
+        try {
+            if(streamed) {
+                streamedInput = new BufferedInputStream(System.in, bufferSize);
+                detectStreamFormat(streamedInput);
+            } else {
+                binaryTapes = TapeFormat.isBinary(Paths.get(inputFile));
+                inputCompressed = TapeFormat.isCompressed(Paths.get(inputFile));
+            }
+            compressTapes |= inputCompressed;
+        } catch (IOException e) {
+            // Missing or unreadable input is reported when it is opened
+        }
+        setUpMerge(numFiles);
+
+        if(streamed) {
+            // Piped runs can only be read once and in order, which is how the polyphase merge distributes them
+            if(mergeStrategy.equals(autoStrategy)) {
+                mergeStrategy = polyphaseStrategy;
+            } else if(!mergeStrategy.equals(polyphaseStrategy)) {
+                System.err.println("The balanced and optimal merges read runs in place, so they need a runs file rather than stdin");
+                System.exit(1);
+            }
+        }
+
+        // Take the runs from the manifest, only scanning the input file for them if they are needed.
+        // The polyphase merge places runs as they are read, so it never needs them counted up front
+        long[] boundaries = runBoundaries;
+        if(boundaries == null && !streamed) {
+            RunManifest manifest = getManifest();
+            boundaries = manifest != null ? RunBoundaries.fromManifest(manifest) : null;
+        }
+        if(numRuns == -1 && !mergeStrategy.equals(polyphaseStrategy)) {
+            if(boundaries == null) {
+                boundaries = scanRunBoundaries();
+            }
+            numRuns = boundaries.length - 1;
+            System.err.println("For " + numRuns + (numRuns == 1 ? " run" : " runs"));
+        }
+
+        // Use whichever merge writes less. The optimal merge never writes more than the balanced merge, and
+        // merging many runs at once needs far fewer passes than polyphase. Without the boundaries every
+        // run is taken to be the same size rather than scanning for them
+        int multiwayFanIn = getFanIn(numRuns);
+        if(mergeStrategy.equals(autoStrategy)) {
+            long[] sizes = boundaries != null ? getRunSizes(boundaries) : new long[numRuns];
+            if(boundaries == null) {
+                Arrays.fill(sizes, 1);
+            }
+            boolean optimal = MergePlan.huffman(sizes, multiwayFanIn).getBytesWritten() <= estimatePolyphaseWrites(numFiles, sizes);
+            mergeStrategy = optimal ? optimalStrategy : polyphaseStrategy;
+        }
+
+        if(!mergeStrategy.equals(polyphaseStrategy)) {
+            if(boundaries == null) {
+                boundaries = scanRunBoundaries();
+            }
+            if(boundaries.length - 1 > numRuns) {
+                System.err.println("Input file has more than " + numRuns + " runs");
+                System.exit(1);
+            }
+            if(mergeStrategy.equals(balancedStrategy)) {
+                runBalancedMerge(getTemporaryOutputFiles(2), boundaries, multiwayFanIn);
+            } else {
+                runOptimalMerge(getTemporaryOutputFiles(1).get(0), boundaries, multiwayFanIn);
+            }
+        } else {
+            // Create temporary files
+            List<File> files = getTemporaryOutputFiles( numFiles );
+            // Runs already in the format of the temporary files are copied as they are, which needs
+            // their boundaries. Piped runs, and runs that have to be compressed, are copied record by record
+            boolean sameFormat = !binaryTapes || inputCompressed == compressTapes;
+            if(boundaries == null && !streamed && sameFormat) {
+                boundaries = scanRunBoundaries();
+            }
+            // Load input into output files
+            PolyphaseDistribution distribution = boundaries != null && sameFormat ? transferInputFiles(files, boundaries) : loadInputFiles( files );
+            if(numRuns == -1) {
+                System.err.println("For " + distribution.getNumRuns() + (distribution.getNumRuns() == 1 ? " run" : " runs"));
+            } else if(distribution.getNumRuns() > numRuns) {
+                System.err.println("Input file has more than " + numRuns + " runs");
+                System.exit(1);
+            }
+
+            // Merge the files
+            runPolyphaseMerge(files, distribution.getRunCounts(), distribution.getDummyRuns());
+        }
+        if(readAheadPool != null) {
+            readAheadPool.shutdown();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,107 @@
+/**
+ * Places runs on the polyphase merge files as they arrive
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package PolyMerge;
+
+/**
+ * Horizontal polyphase distribution, Algorithm D of Knuth's The Art of Computer Programming 5.4.2.
+ * Runs are spread over the input files one at a time without knowing how many there are. The files aim
+ * for a perfect Fibonacci distribution, which moves up a level whenever it fills, and whatever the last
+ * level is short of is made up with dummy runs, spread evenly over the files so the first merges are
+ * between dummy runs and cost nothing.
+ * Files are numbered like the merge numbers them: the last file is the first output and starts empty,
+ * and the file before it holds the most runs
+ */
+class PolyphaseDistribution {
+    private final int numFiles;
+    // Runs each input file holds at the current level, real and dummy, most first
+    private final int[] target;
+    // Runs each input file is still short of at the current level
+    private final int[] dummy;
+    // Input file the last run went to, as an index into target
+    private int tape = 0;
+    private int runs = 0;
+
+    /**
+     * Creates a distribution at the first level, where each input file holds one dummy run
+     * @param numFiles Number of temporary files, including the output
+     */
+    PolyphaseDistribution(int numFiles) {
+        this.numFiles = numFiles;
+        target = new int[numFiles - 1];
+        dummy = new int[numFiles - 1];
+        for(int i = 0; i < target.length; i++) {
+            target[i] = 1;
+            dummy[i] = 1;
+        }
+    }
+
+    /**
+     * Picks the file for the next run, which then holds one less dummy run
+     * @return Index of the file to append the run to
+     */
+    int nextTape() {
+        if(runs > 0) {
+            advance();
+        }
+        dummy[tape]--;
+        runs++;
+        return target.length - 1 - tape;
+    }
+
+    /**
+     * Moves on to the file short of the most runs, going up a level once every file is full
+     */
+    private void advance() {
+        if(tape + 1 < target.length && dummy[tape] < dummy[tape + 1]) {
+            tape++;
+            return;
+        }
+        if(dummy[tape] == 0) {
+            // The next level gives each file the runs of the largest file plus the runs of the file after it
+            int largest = target[0];
+            for(int i = 0; i < target.length; i++) {
+                int next = largest + (i + 1 < target.length ? target[i + 1] : 0);
+                dummy[i] = next - target[i];
+                target[i] = next;
+            }
+        }
+        tape = 0;
+    }
+
+    /**
+     * Gets the number of real runs distributed
+     * @return Number of runs
+     */
+    int getNumRuns() {
+        return runs;
+    }
+
+    /**
+     * Gets the number of runs in each file
+     * @return Number of runs in each file, real and dummy, the output file holding none
+     */
+    int[] getRunCounts() {
+        int[] counts = new int[numFiles];
+        for(int i = 0; i < target.length; i++) {
+            counts[target.length - 1 - i] = target[i];
+        }
+        return counts;
+    }
+
+    /**
+     * Gets the number of dummy runs in each file
+     * @return Number of dummy runs in each file
+     */
+    int[] getDummyRuns() {
+        int[] counts = new int[numFiles];
+        for(int i = 0; i < dummy.length; i++) {
+            counts[dummy.length - 1 - i] = dummy[i];
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Input stream that reads ahead in the background
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package PolyMerge;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Double buffers a tape so the disk is read while the merge works. While one buffer is being read
+ * from, a task on the pool fills the other, and the two swap when the first runs out. Each stream
+ * only ever has one fill in flight, so it never holds more than its two buffers
+ */
+class ReadAheadInputStream extends InputStream {
+    private final InputStream input;
+    private final ExecutorService pool;
+    private byte[] current;
+    private byte[] next;
+    private int position = 0;
+    private int limit = 0;
+    // Fill of the next buffer, giving the number of bytes read or -1 at the end of the stream
+    private Future<Integer> pending;
+
+    /**
+     * Creates a stream and starts reading ahead
+     * @param input Stream to read ahead from
+     * @param pool Pool to run the reads on
+     * @param bufferSize Size of each of the two buffers
+     */
+    ReadAheadInputStream(InputStream input, ExecutorService pool, int bufferSize) {
+        this.input = input;
+        this.pool = pool;
+        this.current = new byte[bufferSize];
+        this.next = new byte[bufferSize];
+        startFill();
+    }
+
+    /**
+     * Starts filling the next buffer in the background
+     */
+    private void startFill() {
+        byte[] target = next;
+        pending = pool.submit(() -> {
+            int count = 0;
+            while(count < target.length) {
+                int read = input.read(target, count, target.length - count);
+                if(read < 0) {
+                    break;
+                }
+                count += read;
+            }
+            return count > 0 ? count : -1;
+        });
+    }
+
+    /**
+     * Waits for the fill in flight
+     * @return Number of bytes read, -1 at the end of the stream
+     * @throws IOException If the read failed
+     */
+    private int awaitFill() throws IOException {
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading ahead");
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Reading ahead failed", e.getCause());
+        }
+    }
+
+    /**
+     * Swaps in the next buffer once the current one has been read and starts filling the other
+     * @return False if the stream has ended
+     * @throws IOException
+     */
+    private boolean swap() throws IOException {
+        if(pending == null) {
+            return false;
+        }
+        int count = awaitFill();
+        if(count < 0) {
+            pending = null;
+            return false;
+        }
+        byte[] filled = next;
+        next = current;
+        current = filled;
+        position = 0;
+        limit = count;
+        startFill();
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(position == limit && !swap()) {
+            return -1;
+        }
+        return current[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] destination, int offset, int length) throws IOException {
+        if(length == 0) {
+            return 0;
+        }
+        if(position == limit && !swap()) {
+            return -1;
+        }
+        int count = Math.min(length, limit - position);
+        System.arraycopy(current, position, destination, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Let the fill in flight finish before closing the stream under it
+        if(pending != null) {
+            try {
+                awaitFill();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+            pending = null;
+        }
+        input.close();
+    }
+}
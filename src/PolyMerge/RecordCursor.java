@@ -0,0 +1,133 @@
+/**
+ * Reusable holder for the current record of a tape
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package PolyMerge;
+
+/**
+ * Holds the bytes of the record a tape is on, so the merge can order tapes without a new object per
+ * record. Readers point the cursor into their own buffer when the whole record is there, and only copy
+ * into the cursor's buffer when a record is split across reads. Either way the bytes are only valid
+ * until the next read from the same tape
+ */
+class RecordCursor {
+    private byte[] buffer = new byte[256];
+    private byte[] bytes = buffer;
+    private int offset = 0;
+    private int length = 0;
+    // Parsed numeric key, only worked out when numeric keys are compared
+    private long key;
+    private boolean hasKey = false;
+
+    /**
+     * Gets the array holding the record
+     * @return The array
+     */
+    byte[] getBytes() { return bytes; }
+
+    /**
+     * Gets the offset of the record in its array
+     * @return The offset
+     */
+    int getOffset() { return offset; }
+
+    /**
+     * Gets the length of the record
+     * @return Length in bytes
+     */
+    int getLength() { return length; }
+
+    /**
+     * Points the cursor at a record in another array
+     * @param bytes Array holding the record
+     * @param offset Offset of the record
+     * @param length Length of the record
+     */
+    void set(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        this.hasKey = false;
+    }
+
+    /**
+     * Empties the cursor's own buffer so a record can be built up in it with append
+     */
+    void clear() {
+        set(buffer, 0, 0);
+    }
+
+    /**
+     * Appends bytes to the record in the cursor's own buffer, call clear first
+     * @param source Array holding the bytes
+     * @param sourceOffset Offset of the bytes
+     * @param count Number of bytes
+     */
+    void append(byte[] source, int sourceOffset, int count) {
+        if(buffer.length < length + count) {
+            byte[] grown = new byte[Math.max(length + count, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+            bytes = buffer;
+        }
+        System.arraycopy(source, sourceOffset, buffer, length, count);
+        length += count;
+    }
+
+    /**
+     * Compares records byte by byte as unsigned values, which for UTF-8 is code point order
+     * @param a First record
+     * @param b Second record
+     * @return Comparison of the first record against the second
+     */
+    static int compareBytes(RecordCursor a, RecordCursor b) {
+        byte[] bytesA = a.bytes;
+        byte[] bytesB = b.bytes;
+        int length = Math.min(a.length, b.length);
+        for(int i = 0; i < length; i++) {
+            int byteA = bytesA[a.offset + i] & 0xFF;
+            int byteB = bytesB[b.offset + i] & 0xFF;
+            if(byteA != byteB) {
+                return byteA - byteB;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Parses the record as a signed long. MakeRuns has already checked the keys are valid
+     * @return The parsed key
+     */
+    private long getNumericKey() {
+        if(hasKey) {
+            return key;
+        }
+        int i = offset;
+        int end = offset + length;
+        boolean negative = bytes[i] == '-';
+        if(negative || bytes[i] == '+') {
+            i++;
+        }
+        // Accumulate negatively so the minimum long can be parsed
+        long value = 0;
+        for(; i < end; i++) {
+            value = value * 10 - (bytes[i] - '0');
+        }
+        key = negative ? value : -value;
+        hasKey = true;
+        return key;
+    }
+
+    /**
+     * Compares records by their numeric keys
+     * @param a First record
+     * @param b Second record
+     * @return Comparison of the keys
+     */
+    static int compareNumeric(RecordCursor a, RecordCursor b) {
+        return Long.compare(a.getNumericKey(), b.getNumericKey());
+    }
+}
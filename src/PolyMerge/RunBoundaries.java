@@ -0,0 +1,198 @@
+/**
+ * Finds where each run starts in a runs file
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package PolyMerge;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import MakeRuns.RunManifest;
+import MakeRuns.TapeFormat;
+
+/**
+ * Byte offsets of the runs in a runs file, so runs can be read in place instead of one after another.
+ * Boundaries are given as an array one longer than the number of runs, run i taking up the bytes from
+ * boundary i up to boundary i + 1
+ */
+class RunBoundaries {
+    private final static int bufferSize = 1 << 16;
+
+    /**
+     * Takes the boundaries from a manifest
+     * @param manifest Manifest of the runs file
+     * @return Boundaries of the runs
+     */
+    static long[] fromManifest(RunManifest manifest) {
+        int runs = manifest.getNumRuns();
+        long[] boundaries = new long[runs + 1];
+        for(int i = 0; i < runs; i++) {
+            boundaries[i] = manifest.getRun(i).getOffset();
+        }
+        boundaries[runs] = runs == 0 ? 0 : manifest.getRun(runs - 1).getOffset() + manifest.getRun(runs - 1).getLength();
+        return boundaries;
+    }
+
+    /**
+     * Finds the boundaries by scanning the file. Text runs end with an empty line, binary runs with an empty
+     * block, and binary blocks are skipped over by their length without being read
+     * @param file Runs file
+     * @param binary True if the file is in the binary TapeFormat, which starts with its header
+     * @param compressed True if the binary blocks are compressed
+     * @return Boundaries of the runs
+     * @throws IOException
+     */
+    static long[] scan(Path file, boolean binary, boolean compressed) throws IOException {
+        try(InputStream input = Files.newInputStream(file)) {
+            return binary ? scanBinary(new BufferedInputStream(input, bufferSize), compressed) : scanText(input);
+        }
+    }
+
+    /**
+     * Adds a boundary, growing the array if it is full
+     * @param boundaries Boundaries so far
+     * @param count Number of boundaries so far
+     * @param boundary Boundary to add
+     * @return The array holding the boundaries
+     */
+    private static long[] add(long[] boundaries, int count, long boundary) {
+        if(count == boundaries.length) {
+            long[] grown = new long[count * 2];
+            System.arraycopy(boundaries, 0, grown, 0, count);
+            boundaries = grown;
+        }
+        boundaries[count] = boundary;
+        return boundaries;
+    }
+
+    /**
+     * Trims the boundaries down to the ones found
+     * @param boundaries Boundaries found
+     * @param count Number of boundaries
+     * @return Array holding exactly the boundaries
+     */
+    private static long[] trim(long[] boundaries, int count) {
+        long[] trimmed = new long[count];
+        System.arraycopy(boundaries, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    /**
+     * Finds the empty lines ending text runs
+     * @param input Stream of the file
+     * @return Boundaries of the runs
+     * @throws IOException
+     */
+    private static long[] scanText(InputStream input) throws IOException {
+        byte[] buffer = new byte[bufferSize];
+        long[] boundaries = new long[64];
+        int count = 1;
+        long position = 0;
+        boolean lineStart = true;
+        int read;
+        while((read = input.read(buffer, 0, buffer.length)) >= 0) {
+            for(int i = 0; i < read; i++) {
+                if(buffer[i] != '\n') {
+                    lineStart = false;
+                    continue;
+                }
+                if(lineStart) {
+                    boundaries = add(boundaries, count++, position + i + 1);
+                }
+                lineStart = true;
+            }
+            position += read;
+        }
+        // A last run the file ends part way through still counts, like it does when reading it
+        if(position > boundaries[count - 1]) {
+            boundaries = add(boundaries, count++, position);
+        }
+        return trim(boundaries, count);
+    }
+
+    /**
+     * Walks the blocks of binary runs
+     * @param input Stream of the file
+     * @param compressed True if the blocks are compressed
+     * @return Boundaries of the runs
+     * @throws IOException
+     */
+    private static long[] scanBinary(InputStream input, boolean compressed) throws IOException {
+        long[] boundaries = new long[64];
+        TapeFormat.readHeader(input);
+        long position = TapeFormat.getHeaderLength();
+        boundaries[0] = position;
+        int count = 1;
+        while(true) {
+            int records = readVarint(input, true);
+            if(records < 0) {
+                break;
+            }
+            position += TapeFormat.getVarintSize(records);
+            if(records == 0) {
+                boundaries = add(boundaries, count++, position);
+                continue;
+            }
+            int length = readVarint(input, false);
+            int storedLength = compressed ? readVarint(input, false) : length;
+            position += TapeFormat.getVarintSize(length) + (compressed ? TapeFormat.getVarintSize(storedLength) : 0) + storedLength;
+            skipFully(input, storedLength);
+        }
+        if(position > boundaries[count - 1]) {
+            throw new EOFException("Runs file ends part way through a run");
+        }
+        return trim(boundaries, count);
+    }
+
+    /**
+     * Reads a varint
+     * @param input Stream to read from
+     * @param endAllowed True if the stream may end before the varint
+     * @return The value, or -1 if the stream has ended
+     * @throws IOException If the stream ends part way through a run
+     */
+    private static int readVarint(InputStream input, boolean endAllowed) throws IOException {
+        int value = 0;
+        for(int shift = 0; shift < 32; shift += 7) {
+            int b = input.read();
+            if(b < 0) {
+                if(endAllowed && shift == 0) {
+                    return -1;
+                }
+                throw new EOFException("Runs file ends part way through a run");
+            }
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed number in runs file");
+    }
+
+    /**
+     * Skips bytes of a stream
+     * @param input Stream to skip
+     * @param length Number of bytes
+     * @throws IOException If the stream ends first
+     */
+    private static void skipFully(InputStream input, long length) throws IOException {
+        while(length > 0) {
+            long skipped = input.skip(length);
+            if(skipped <= 0) {
+                // Skip can give up early, reading a byte tells the end of the stream apart
+                if(input.read() < 0) {
+                    throw new EOFException("Runs file ends part way through a run");
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Writes the sorted output of the final merge
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package PolyMerge;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Lets the final merge write records straight to the output as lines instead of to another tape.
+ * Records are copied into a large buffer that is handed to the channel when full, so there is no
+ * lock or flush per line. Records are written as the bytes they were read as
+ */
+class SortedOutputWriter implements TapeWriter {
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    // Bytes already handed to the channel
+    private long written = 0;
+
+    /**
+     * Creates a writer
+     * @param channel Channel to write the output to
+     * @param bufferSize Size of the output buffer
+     */
+    SortedOutputWriter(WritableByteChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Hands a buffer to the channel
+     * @param bytes Buffer to write out
+     * @throws IOException
+     */
+    private void write(ByteBuffer bytes) throws IOException {
+        while(bytes.hasRemaining()) {
+            written += channel.write(bytes);
+        }
+    }
+
+    /**
+     * Hands the buffered output to the channel
+     * @throws IOException
+     */
+    private void flush() throws IOException {
+        buffer.flip();
+        write(buffer);
+        buffer.clear();
+    }
+
+    public void writeRecord(RecordCursor record) throws IOException {
+        int length = record.getLength();
+        if(buffer.remaining() <= length) {
+            flush();
+        }
+        if(length < buffer.capacity()) {
+            buffer.put(record.getBytes(), record.getOffset(), length);
+        } else {
+            // Too big for the buffer, write it straight out
+            write(ByteBuffer.wrap(record.getBytes(), record.getOffset(), length));
+        }
+        if(!buffer.hasRemaining()) {
+            flush();
+        }
+        buffer.put((byte) '\n');
+    }
+
+    public void endRun() {
+        // The output is a single run, there is nothing to mark
+    }
+
+    public long getPosition() {
+        return written + buffer.position();
+    }
+
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Reads runs back from a tape
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package PolyMerge;
+
+import java.io.IOException;
+
+/**
+ * Reads the runs on a tape one record at a time, whatever format the tape is in
+ */
+interface TapeReader {
+    /**
+     * Reads the next record of the current run into a cursor. The record is only valid until the next call on the reader
+     * @param cursor Cursor to load the record into
+     * @return False if the run has ended
+     * @throws IOException
+     */
+    boolean readRecord(RecordCursor cursor) throws IOException;
+
+    /**
+     * Checks if there is another run to read. Only valid between runs
+     * @return True if there is another run on the tape
+     * @throws IOException
+     */
+    boolean hasMoreRuns() throws IOException;
+
+    /**
+     * Skips over the next run without looking at its records
+     * @throws IOException
+     */
+    void skipRun() throws IOException;
+
+    /**
+     * Closes the tape
+     * @throws IOException
+     */
+    void close() throws IOException;
+}
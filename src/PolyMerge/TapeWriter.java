@@ -0,0 +1,40 @@
+/**
+ * Writes runs to a tape
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package PolyMerge;
+
+import java.io.IOException;
+
+/**
+ * Writes runs to a tape one record at a time, in the format the tape was opened with
+ */
+interface TapeWriter {
+    /**
+     * Writes a record to the current run
+     * @param record Cursor holding the record
+     * @throws IOException
+     */
+    void writeRecord(RecordCursor record) throws IOException;
+
+    /**
+     * Ends the current run. Ending a run with no records writes an empty run
+     * @throws IOException
+     */
+    void endRun() throws IOException;
+
+    /**
+     * Gets the number of bytes written to the tape. After endRun this is where the next run starts
+     * @return Number of bytes written
+     */
+    long getPosition();
+
+    /**
+     * Closes the tape
+     * @throws IOException
+     */
+    void close() throws IOException;
+}
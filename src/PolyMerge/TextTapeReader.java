@@ -0,0 +1,121 @@
+/**
+ * Reads runs from a text tape
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package PolyMerge;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the text format MakeRuns writes by default. Each record is a line starting with -, and an
+ * empty line ends a run. Lines are split on raw bytes so records are never decoded, and the - is
+ * left out of the record
+ */
+class TextTapeReader implements TapeReader {
+    private final InputStream input;
+    private final byte[] buffer;
+    private int position = 0;
+    private int limit = 0;
+    // Cursor for lines that are skipped over
+    private final RecordCursor skipped = new RecordCursor();
+
+    /**
+     * Creates a reader
+     * @param input Stream to read from
+     * @param bufferSize Size of the read buffer
+     */
+    TextTapeReader(InputStream input, int bufferSize) {
+        this.input = input;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Refills the buffer once it has all been read
+     * @return False if the tape has ended
+     * @throws IOException
+     */
+    private boolean fill() throws IOException {
+        if(position < limit) {
+            return true;
+        }
+        int count;
+        do {
+            count = input.read(buffer, 0, buffer.length);
+        } while(count == 0);
+        position = 0;
+        limit = Math.max(count, 0);
+        return count > 0;
+    }
+
+    /**
+     * Finds the next new line in the buffer
+     * @return Index of the new line, -1 if there isn't one before the end of the buffer
+     */
+    private int findNewLine() {
+        for(int i = position; i < limit; i++) {
+            if(buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the next line into a cursor, without its new line
+     * @param cursor Cursor to load the line into
+     * @return False if the tape has ended
+     * @throws IOException
+     */
+    private boolean readLine(RecordCursor cursor) throws IOException {
+        if(!fill()) {
+            return false;
+        }
+        int end = findNewLine();
+        if(end >= 0) {
+            // Whole line is in the buffer, point straight at it
+            cursor.set(buffer, position, end - position);
+            position = end + 1;
+            return true;
+        }
+        // Line runs past the buffer, build it up in the cursor
+        cursor.clear();
+        do {
+            cursor.append(buffer, position, limit - position);
+            position = limit;
+            if(!fill()) {
+                // Last line doesn't end with a new line
+                return true;
+            }
+            end = findNewLine();
+        } while(end < 0);
+        cursor.append(buffer, position, end - position);
+        position = end + 1;
+        return true;
+    }
+
+    public boolean readRecord(RecordCursor cursor) throws IOException {
+        // An empty line ends a run, and so does the end of a tape that doesn't end with one
+        if(!readLine(cursor) || cursor.getLength() == 0) {
+            return false;
+        }
+        // Leave out the - that starts every record
+        cursor.set(cursor.getBytes(), cursor.getOffset() + 1, cursor.getLength() - 1);
+        return true;
+    }
+
+    public boolean hasMoreRuns() throws IOException {
+        return fill();
+    }
+
+    public void skipRun() throws IOException {
+        while(readRecord(skipped)) { }
+    }
+
+    public void close() throws IOException {
+        input.close();
+    }
+}
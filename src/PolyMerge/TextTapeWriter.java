@@ -0,0 +1,77 @@
+/**
+ * Writes runs to a text tape
+ *
+ * Daniel Stokes - 1331134
+ * Morgan Dally - ???????
+ */
+
+package PolyMerge;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes records as lines starting with -, each run followed by an empty line
+ */
+class TextTapeWriter implements TapeWriter {
+    private final OutputStream output;
+    private final byte[] buffer;
+    private int position = 0;
+    // Bytes already handed to the stream
+    private long written = 0;
+
+    /**
+     * Creates a writer
+     * @param output Stream to write to
+     * @param bufferSize Size of the write buffer
+     */
+    TextTapeWriter(OutputStream output, int bufferSize) {
+        this.output = output;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Writes out the buffer
+     * @throws IOException
+     */
+    private void flush() throws IOException {
+        output.write(buffer, 0, position);
+        written += position;
+        position = 0;
+    }
+
+    public void writeRecord(RecordCursor record) throws IOException {
+        int length = record.getLength();
+        if(position + length + 2 > buffer.length) {
+            flush();
+        }
+        if(length + 2 > buffer.length) {
+            // Too big for the buffer, write it straight out
+            output.write('-');
+            output.write(record.getBytes(), record.getOffset(), length);
+            output.write('\n');
+            written += length + 2;
+            return;
+        }
+        buffer[position++] = '-';
+        System.arraycopy(record.getBytes(), record.getOffset(), buffer, position, length);
+        position += length;
+        buffer[position++] = '\n';
+    }
+
+    public void endRun() throws IOException {
+        if(position == buffer.length) {
+            flush();
+        }
+        buffer[position++] = '\n';
+    }
+
+    public long getPosition() {
+        return written + position;
+    }
+
+    public void close() throws IOException {
+        flush();
+        output.close();
+    }
+}